@@ -1,261 +1,5539 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
+// All amounts are in cents (long), so there is no rounding drift and no boxing.
+// Each operation returns the account's new balance.
 interface Transactable {
-    void deposit(double amount);
-    void withdraw(double amount) throws InsufficientFundsException;
-    void transfer(Account toAccount, double amount) throws InsufficientFundsException;
+    long deposit(long amount);
+    long withdraw(long amount) throws InsufficientFundsException;
+    long transfer(Account toAccount, long amount) throws InsufficientFundsException;
 }
 
-abstract class Account implements Transactable {
+final class Money {
+    private Money() {
+    }
+
+    static long ofDollars(long dollars) {
+        return Math.multiplyExact(dollars, 100L);
+    }
+
+    static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    static long subtract(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+
+    // Parses "12", "12.3" or "12.34" into cents without going through double.
+    static long parse(String text) {
+        String s = text.trim();
+        int dot = s.indexOf('.');
+        String whole = dot < 0 ? s : s.substring(0, dot);
+        String fraction = dot < 0 ? "" : s.substring(dot + 1);
+        if (whole.isEmpty() && fraction.isEmpty() || fraction.length() > 2
+                || !isDigits(whole) || !isDigits(fraction)) {
+            throw new NumberFormatException("Invalid amount: " + text);
+        }
+        long cents = 0;
+        for (int i = 0; i < whole.length(); i++) {
+            cents = Math.addExact(Math.multiplyExact(cents, 10L), whole.charAt(i) - '0');
+        }
+        cents = Math.multiplyExact(cents, 100L);
+        if (fraction.length() > 0) {
+            long part = (fraction.charAt(0) - '0') * 10L;
+            if (fraction.length() > 1) {
+                part += fraction.charAt(1) - '0';
+            }
+            cents = Math.addExact(cents, part);
+        }
+        return cents;
+    }
+
+    static String format(long cents) {
+        // Math.abs(Long.MIN_VALUE) overflows, so split off the last digits while still negative
+        long dollars = Math.abs(cents / 100);
+        long fraction = Math.abs(cents % 100);
+        return (cents < 0 ? "-$" : "$") + dollars + "." + (fraction < 10 ? "0" + fraction : String.valueOf(fraction));
+    }
+
+    static void requirePositive(long amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Amount must be positive.");
+        }
+    }
+
+    // ASCII digits only: Character.isDigit also accepts other scripts' digits, which the - '0' above would misread
+    private static boolean isDigits(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+class Account implements Transactable {
+    private static final AtomicLong nextId = new AtomicLong();
+
+    // unique per bank, used to take transfer locks in a fixed order
+    protected final long id;
+    // held by transfers, and by every operation while a journal is attached so that
+    // the order of records in the journal is the order they were applied in
+    private final ReentrantLock lock = new ReentrantLock();
     protected String accountNumber;
     protected String accountHolder;
-    protected double balance;
-    protected ArrayList<String> transactionHistory;
+    // a single long so every balance change is one compare-and-set; on the heap,
+    // or in the memory-mapped account file once bound to one
+    private volatile BalanceCell balance;
+    protected final TransactionHistory transactionHistory;
+    private volatile Journal journal;
+    // seq of the last journal record in transactionHistory, guarded by lock. The balance keeps its own,
+    // because a mapped balance can be ahead of the history after a restart.
+    private long historySeq;
+    private final Product product;
+    // the product's rules compiled for this account's limits; replaced as a whole when the limits change
+    private volatile WithdrawalRules rules;
+    // recent withdrawals; created by the first withdrawal while the limits have a daily or rolling cap
+    private volatile WithdrawalWindow withdrawals;
+    // the epoch day interest was last accrued to, and the fraction of a cent carried past it
+    // (in 1/InterestAccrual.DAILY_DIVISOR cents); both guarded by lock and moving with the history
+    private int interestDay;
+    private long interestCarry;
+    // the same for monthly charges: the month last charged (see MonthlyCharges.period) and the
+    // fraction of a cent of overdraft interest carried past it, in 1/MonthlyCharges.MONTHLY_DIVISOR cents
+    private int chargedMonth;
+    private long overdraftCarry;
+
+    public Account(String accountNumber, String accountHolder, long balance, Product product) {
+        this(accountNumber, accountHolder, balance, product, new TransactionHistory(accountHolder, accountNumber));
+    }
+
+    Account(String accountNumber, String accountHolder, long balance, Product product, TransactionHistory transactionHistory) {
+        this.id = nextId.incrementAndGet();
+        this.accountNumber = accountNumber;
+        this.accountHolder = accountHolder;
+        this.balance = new HeapBalanceCell(balance);
+        this.product = product;
+        this.transactionHistory = transactionHistory;
+        useLimits(product.limits);
+    }
+
+    static Account create(String productCode, String accountNumber, String accountHolder, long balance) {
+        return new Account(accountNumber, accountHolder, balance, Products.get(productCode));
+    }
+
+    Product getProduct() {
+        return product;
+    }
+
+    char getType() {
+        return product.kind;
+    }
+
+    // overdraft for checking products, per-withdrawal cap for savings products
+    long getLimit() {
+        return rules.limits.limit;
+    }
+
+    public WithdrawalLimits getWithdrawalLimits() {
+        return rules.limits;
+    }
+
+    // Journaled like a transaction. Withdrawals made before a cap is introduced do not count against it.
+    public void setWithdrawalLimits(WithdrawalLimits limits) {
+        Journal journal = this.journal;
+        lock.lock();
+        try {
+            useLimits(limits);
+            if (journal != null) {
+                journal.commit(journal.logLimits(this, limits));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void useLimits(WithdrawalLimits limits) {
+        this.rules = product.compile(limits);
+        balance.limitChanged(limits.limit);
+        if (!limits.hasCaps()) {
+            withdrawals = null;
+        }
+    }
+
+    // null while there are no caps to enforce
+    private WithdrawalWindow withdrawalWindow(WithdrawalRules rules) {
+        if (!rules.capped) {
+            return null;
+        }
+        WithdrawalWindow window = withdrawals;
+        if (window == null) {
+            synchronized (this) {
+                window = withdrawals;
+                if (window == null) {
+                    withdrawals = window = new WithdrawalWindow();
+                }
+            }
+        }
+        return window;
+    }
+
+    public long getBalance() {
+        return balance.get();
+    }
+
+    void attachJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    // Must happen before the account is used by sessions.
+    void bindTo(MappedAccountStore store) {
+        balance = store.bind(this, balance);
+    }
+
+    long getLastSeq() {
+        return balance.lastSeq();
+    }
+
+    public long deposit(long amount) {
+        long started = Metrics.start();
+        TransactionEvent event = new TransactionEvent();
+        event.begin();
+        String outcome = TransactionEvent.FAILED;
+        try {
+            long newBalance = doDeposit(amount);
+            outcome = TransactionEvent.OK;
+            return newBalance;
+        } finally {
+            Metrics.record(Metrics.Operation.DEPOSIT, started);
+            event.finish("deposit", this, null, amount, outcome);
+            AuditLog.transaction(AuditLog.DEPOSIT, this, null, amount, outcome);
+        }
+    }
+
+    public long withdraw(long amount) throws InsufficientFundsException {
+        long started = Metrics.start();
+        TransactionEvent event = new TransactionEvent();
+        event.begin();
+        String outcome = TransactionEvent.FAILED;
+        try {
+            long newBalance = doWithdraw(amount);
+            outcome = TransactionEvent.OK;
+            return newBalance;
+        } catch (InsufficientFundsException e) {
+            Metrics.declined(e.getReason());
+            outcome = e.getReason().name();
+            throw e;
+        } finally {
+            Metrics.record(Metrics.Operation.WITHDRAW, started);
+            event.finish("withdraw", this, null, amount, outcome);
+            AuditLog.transaction(AuditLog.WITHDRAW, this, null, amount, outcome);
+        }
+    }
+
+    public long transfer(Account toAccount, long amount) throws InsufficientFundsException {
+        long started = Metrics.start();
+        TransactionEvent event = new TransactionEvent();
+        event.begin();
+        String outcome = TransactionEvent.FAILED;
+        try {
+            long newBalance = doTransfer(toAccount, amount);
+            outcome = TransactionEvent.OK;
+            return newBalance;
+        } catch (InsufficientFundsException e) {
+            Metrics.declined(e.getReason());
+            outcome = e.getReason().name();
+            throw e;
+        } finally {
+            Metrics.record(Metrics.Operation.TRANSFER, started);
+            event.finish("transfer", this, toAccount, amount, outcome);
+            AuditLog.transaction(AuditLog.TRANSFER, this, toAccount, amount, outcome);
+        }
+    }
+
+    private long doDeposit(long amount) {
+        Money.requirePositive(amount);
+        long now = System.currentTimeMillis();
+        long newBalance;
+        Journal journal = this.journal;
+        if (journal == null) {
+            newBalance = applyDeposit(amount, now);
+        } else {
+            long seq;
+            lock.lock();
+            try {
+                Money.add(balance.get(), amount);
+                seq = journal.logDeposit(this, amount, now);
+                balance.beginUpdate(seq);
+                newBalance = applyDeposit(amount, now);
+                endUpdate(seq);
+            } finally {
+                lock.unlock();
+            }
+            journal.commit(seq);
+        }
+        return newBalance;
+    }
+
+    private long doWithdraw(long amount) throws InsufficientFundsException {
+        Money.requirePositive(amount);
+        long now = System.currentTimeMillis();
+        long newBalance;
+        Journal journal = this.journal;
+        if (journal == null) {
+            newBalance = applyWithdraw(amount, now);
+        } else {
+            long seq;
+            lock.lock();
+            try {
+                // only withdrawals that will succeed are logged, so replay never has to decide an outcome
+                checkWithdraw(amount, now);
+                seq = journal.logWithdraw(this, amount, now);
+                balance.beginUpdate(seq);
+                newBalance = applyWithdraw(amount, now);
+                endUpdate(seq);
+            } finally {
+                lock.unlock();
+            }
+            journal.commit(seq);
+        }
+        return newBalance;
+    }
+
+    private long doTransfer(Account toAccount, long amount) throws InsufficientFundsException {
+        Money.requirePositive(amount);
+        long now = System.currentTimeMillis();
+        long seq = 0;
+        long newBalance;
+        Journal journal = this.journal;
+        // Both accounts are locked lowest id first, so A->B and B->A can never wait on each other,
+        // and no other transfer can see the money after it left this account but before it arrived.
+        Account first = this.id < toAccount.id ? this : toAccount;
+        Account second = first == this ? toAccount : this;
+        TransferLockWaitEvent lockWait = new TransferLockWaitEvent();
+        lockWait.begin();
+        first.lock.lock();
+        try {
+            second.lock.lock();
+            try {
+                lockWait.finish(this, toAccount);
+                checkTransfer(amount, now);
+                if (journal != null) {
+                    Money.add(toAccount.balance.get(), amount);
+                    seq = journal.logTransfer(this, toAccount, amount, now);
+                    this.balance.beginUpdate(seq);
+                    toAccount.balance.beginUpdate(seq);
+                }
+                applyTransferOut(toAccount, amount, now);
+                toAccount.applyDeposit(amount, now);
+                newBalance = balance.get();
+                if (journal != null) {
+                    this.endUpdate(seq);
+                    toAccount.endUpdate(seq);
+                }
+            } finally {
+                second.lock.unlock();
+            }
+        } finally {
+            first.lock.unlock();
+        }
+        if (journal != null) {
+            journal.commit(seq);
+        }
+        return newBalance;
+    }
+
+    // Posts the interest earned since the last accrual up to the end of the given epoch day and returns
+    // the cents posted, or -1 if the product pays none or that day is already accrued. Days missed since
+    // the last accrual are paid on the current balance. Sessions keep using the account meanwhile: the
+    // lock only orders this against other journaled changes, and without a journal the balance is still
+    // a compare-and-set. The journal record is left for the caller to commit together with others.
+    long accrueInterest(long day, long timestamp) {
+        int rate = product.interestRateBps;
+        if (rate <= 0) {
+            return -1;
+        }
+        long interest;
+        Journal journal = this.journal;
+        lock.lock();
+        try {
+            if (interestDay >= day) {
+                return -1;
+            }
+            long days = interestDay == 0 ? 1 : day - interestDay;
+            long current = balance.get();
+            long earned = interestCarry;
+            if (current > 0) {
+                earned = Math.addExact(Math.multiplyExact(Math.multiplyExact(current, (long) rate), days), earned);
+            }
+            interest = earned / InterestAccrual.DAILY_DIVISOR;
+            long carry = earned % InterestAccrual.DAILY_DIVISOR;
+            if (journal == null) {
+                applyInterest(interest, day, carry, timestamp);
+            } else {
+                Money.add(current, interest);
+                long seq = journal.logInterest(this, interest, day, carry, timestamp);
+                balance.beginUpdate(seq);
+                applyInterest(interest, day, carry, timestamp);
+                endUpdate(seq);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (interest > 0) {
+            AuditLog.transaction(AuditLog.INTEREST, this, null, interest, TransactionEvent.OK);
+        }
+        return interest;
+    }
+
+    private void applyInterest(long interest, long day, long carry, long timestamp) {
+        if (interest > 0) {
+            credit(interest);
+            transactionHistory.add(TransactionHistory.INTEREST, interest, null, timestamp);
+        }
+        interestDay = (int) day;
+        interestCarry = carry;
+    }
+
+    // Charges the product's monthly fee and the interest on an overdrawn balance for every month since
+    // the last charge up to the given one, and returns the cents charged, or -1 if the product charges
+    // nothing or that month is already charged. Charges are not withdrawals: they may take the balance
+    // past the overdraft limit and do not count against any cap. Locks like accrueInterest does.
+    long chargeMonthly(long month, long timestamp) {
+        long fee = product.monthlyFee;
+        int rate = product.overdraftRateBps;
+        if (fee <= 0 && rate <= 0) {
+            return -1;
+        }
+        long fees;
+        long interest;
+        Journal journal = this.journal;
+        lock.lock();
+        try {
+            if (chargedMonth >= month) {
+                return -1;
+            }
+            long months = chargedMonth == 0 ? 1 : month - chargedMonth;
+            fees = Math.multiplyExact(Math.max(fee, 0), months);
+            long current = balance.get();
+            long owed = overdraftCarry;
+            if (current < 0 && rate > 0) {
+                owed = Math.addExact(Math.multiplyExact(Math.multiplyExact(-current, (long) rate), months), owed);
+            }
+            interest = owed / MonthlyCharges.MONTHLY_DIVISOR;
+            long carry = owed % MonthlyCharges.MONTHLY_DIVISOR;
+            if (journal == null) {
+                applyCharges(fees, interest, month, carry, timestamp);
+            } else {
+                Money.subtract(current, Money.add(fees, interest));
+                long seq = journal.logCharges(this, fees, interest, month, carry, timestamp);
+                balance.beginUpdate(seq);
+                applyCharges(fees, interest, month, carry, timestamp);
+                endUpdate(seq);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (fees + interest > 0) {
+            AuditLog.transaction(AuditLog.CHARGE, this, null, fees + interest, TransactionEvent.OK);
+        }
+        return fees + interest;
+    }
+
+    private void applyCharges(long fees, long interest, long month, long carry, long timestamp) {
+        if (fees > 0) {
+            credit(-fees);
+            transactionHistory.add(TransactionHistory.FEE, fees, null, timestamp);
+        }
+        if (interest > 0) {
+            credit(-interest);
+            transactionHistory.add(TransactionHistory.OVERDRAFT_INTEREST, interest, null, timestamp);
+        }
+        chargedMonth = (int) month;
+        overdraftCarry = carry;
+    }
+
+    public void printTransactionHistory() {
+        printTransactionHistory(System.out);
+    }
+
+    public void printTransactionHistory(PrintStream out) {
+        out.println("\nTransaction History for " + accountHolder + " (" + accountNumber + "):");
+        transactionHistory.print(out);
+    }
+
+    void checkWithdraw(long amount, long now) throws InsufficientFundsException {
+        WithdrawalRules rules = this.rules;
+        rules.checkAmount(amount);
+        if (belowMinimum(balance.get(), amount, rules.minimumBalance)) {
+            throw rules.belowMinimum;
+        }
+        WithdrawalWindow withdrawals = withdrawalWindow(rules);
+        if (withdrawals != null) {
+            withdrawals.check(amount, now, rules.limits);
+        }
+    }
+
+    void checkTransfer(long amount, long now) throws InsufficientFundsException {
+        if (amount > balance.get()) {
+            throw InsufficientFundsException.TRANSFER_INSUFFICIENT_FUNDS;
+        }
+        checkWithdraw(amount, now);
+    }
+
+    long applyDeposit(long amount, long timestamp) {
+        long newBalance = credit(amount);
+        transactionHistory.add(TransactionHistory.DEPOSIT, amount, null, timestamp);
+        return newBalance;
+    }
+
+    long applyWithdraw(long amount, long timestamp) throws InsufficientFundsException {
+        WithdrawalRules rules = this.rules;
+        rules.checkAmount(amount);
+        // the caps are taken before the balance, and handed back if the balance says no
+        WithdrawalWindow withdrawals = withdrawalWindow(rules);
+        if (withdrawals != null) {
+            withdrawals.reserve(amount, timestamp, rules.limits);
+        }
+        long newBalance;
+        try {
+            newBalance = debit(amount, rules.minimumBalance, rules.belowMinimum);
+        } catch (InsufficientFundsException e) {
+            if (withdrawals != null) {
+                withdrawals.release(amount, timestamp);
+            }
+            throw e;
+        }
+        transactionHistory.add(TransactionHistory.WITHDRAWAL, amount, null, timestamp);
+        return newBalance;
+    }
+
+    // the sending half of a transfer; callers hold the locks of both accounts
+    void applyTransferOut(Account toAccount, long amount, long timestamp) throws InsufficientFundsException {
+        applyWithdraw(amount, timestamp);
+        transactionHistory.add(TransactionHistory.TRANSFER, amount, counterparty(toAccount), timestamp);
+    }
+
+    // holder/number, as events and logs show an account
+    String label() {
+        return accountHolder + "/" + accountNumber;
+    }
+
+    // how the other account is shown in this account's history
+    private String counterparty(Account other) {
+        return other.accountHolder.equals(accountHolder) ? other.accountNumber : other.accountHolder + "/" + other.accountNumber;
+    }
+
+    private void endUpdate(long seq) {
+        balance.endUpdate(seq);
+        historySeq = seq;
+    }
+
+    // Replay applies a record only to the parts of the account that do not reflect it yet: the snapshot
+    // may have caught either side of a transfer, and a mapped balance may be ahead of the history.
+    // Logged operations are known to have succeeded, so the withdrawal rules are not checked again.
+    void replayDeposit(long seq, long amount, long timestamp) {
+        if (seq > balance.lastSeq()) {
+            balance.beginUpdate(seq);
+            credit(amount);
+            balance.endUpdate(seq);
+        }
+        if (seq > historySeq) {
+            transactionHistory.add(TransactionHistory.DEPOSIT, amount, null, timestamp);
+            historySeq = seq;
+        }
+    }
+
+    void replayWithdraw(long seq, long amount, long timestamp) {
+        if (seq > balance.lastSeq()) {
+            balance.beginUpdate(seq);
+            credit(-amount);
+            balance.endUpdate(seq);
+        }
+        if (seq > historySeq) {
+            transactionHistory.add(TransactionHistory.WITHDRAWAL, amount, null, timestamp);
+            recordWithdrawal(amount, timestamp);
+            historySeq = seq;
+        }
+    }
+
+    void replayTransfer(long seq, Account toAccount, long amount, long timestamp) {
+        // decide both sides first, the target may be this same account
+        boolean sendingBalance = seq > balance.lastSeq();
+        boolean sendingHistory = seq > historySeq;
+        boolean receivingBalance = seq > toAccount.balance.lastSeq();
+        boolean receivingHistory = seq > toAccount.historySeq;
+        if (sendingBalance) {
+            balance.beginUpdate(seq);
+        }
+        if (receivingBalance) {
+            toAccount.balance.beginUpdate(seq);
+        }
+        if (sendingBalance) {
+            credit(-amount);
+            balance.endUpdate(seq);
+        }
+        if (receivingBalance) {
+            toAccount.credit(amount);
+            toAccount.balance.endUpdate(seq);
+        }
+        if (sendingHistory) {
+            transactionHistory.add(TransactionHistory.WITHDRAWAL, amount, null, timestamp);
+            recordWithdrawal(amount, timestamp);
+            transactionHistory.add(TransactionHistory.TRANSFER, amount, counterparty(toAccount), timestamp);
+            historySeq = seq;
+        }
+        if (receivingHistory) {
+            toAccount.transactionHistory.add(TransactionHistory.DEPOSIT, amount, null, timestamp);
+            toAccount.historySeq = seq;
+        }
+    }
+
+    void replayInterest(long seq, long interest, long day, long carry, long timestamp) {
+        if (seq > balance.lastSeq()) {
+            balance.beginUpdate(seq);
+            credit(interest);
+            balance.endUpdate(seq);
+        }
+        if (seq > historySeq) {
+            if (interest > 0) {
+                transactionHistory.add(TransactionHistory.INTEREST, interest, null, timestamp);
+            }
+            interestDay = (int) day;
+            interestCarry = carry;
+            historySeq = seq;
+        }
+    }
+
+    void replayCharges(long seq, long fees, long interest, long month, long carry, long timestamp) {
+        if (seq > balance.lastSeq()) {
+            balance.beginUpdate(seq);
+            credit(-(fees + interest));
+            balance.endUpdate(seq);
+        }
+        if (seq > historySeq) {
+            if (fees > 0) {
+                transactionHistory.add(TransactionHistory.FEE, fees, null, timestamp);
+            }
+            if (interest > 0) {
+                transactionHistory.add(TransactionHistory.OVERDRAFT_INTEREST, interest, null, timestamp);
+            }
+            chargedMonth = (int) month;
+            overdraftCarry = carry;
+            historySeq = seq;
+        }
+    }
+
+    // the withdrawal window moves with the history, so both agree on which records they have
+    private void recordWithdrawal(long amount, long timestamp) {
+        WithdrawalWindow withdrawals = withdrawalWindow(rules);
+        if (withdrawals != null) {
+            withdrawals.record(amount, timestamp);
+        }
+    }
+
+    void replayed(long seq) {
+        balance.endUpdate(seq);
+        historySeq = seq;
+    }
+
+    // Balance, replay position and history are read under the lock so they agree with each other;
+    // only this account waits, and only for as long as the copy takes.
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        lock.lock();
+        try {
+            out.writeUTF(product.code);
+            out.writeUTF(accountNumber);
+            out.writeLong(balance.get());
+            out.writeLong(historySeq);
+            transactionHistory.writeSnapshot(out);
+            rules.limits.writeSnapshot(out);
+            WithdrawalWindow withdrawals = this.withdrawals;
+            out.writeBoolean(withdrawals != null);
+            if (withdrawals != null) {
+                withdrawals.writeSnapshot(out);
+            }
+            out.writeInt(interestDay);
+            out.writeLong(interestCarry);
+            out.writeInt(chargedMonth);
+            out.writeLong(overdraftCarry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static Account readSnapshot(String accountHolder, DataInputStream in) throws IOException {
+        String productCode = in.readUTF();
+        String accountNumber = in.readUTF();
+        long balance = in.readLong();
+        long lastSeq = in.readLong();
+        TransactionHistory history = TransactionHistory.readSnapshot(accountHolder, accountNumber, in);
+        WithdrawalLimits limits = WithdrawalLimits.readSnapshot(in);
+        WithdrawalWindow withdrawals = in.readBoolean() ? WithdrawalWindow.readSnapshot(in) : null;
+        int interestDay = in.readInt();
+        long interestCarry = in.readLong();
+        int chargedMonth = in.readInt();
+        long overdraftCarry = in.readLong();
+        Product product = Products.find(productCode);
+        if (product == null) {
+            throw new IOException("Unknown account product in snapshot: " + productCode);
+        }
+        Account account = new Account(accountNumber, accountHolder, balance, product, history);
+        account.interestDay = interestDay;
+        account.interestCarry = interestCarry;
+        account.chargedMonth = chargedMonth;
+        account.overdraftCarry = overdraftCarry;
+        account.useLimits(limits);
+        account.withdrawals = withdrawals;
+        account.replayed(lastSeq);
+        return account;
+    }
+
+    protected long credit(long amount) {
+        while (true) {
+            long current = balance.get();
+            long updated = Money.add(current, amount);
+            if (balance.compareAndSet(current, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    // Takes the amount off the balance as long as it does not go below minBalance.
+    // Retries the compare-and-set until it wins, so no lock is held between the check and the update.
+    protected long debit(long amount, long minBalance, InsufficientFundsException failure) throws InsufficientFundsException {
+        Money.requirePositive(amount);
+        while (true) {
+            long current = balance.get();
+            if (belowMinimum(current, amount, minBalance)) {
+                throw failure;
+            }
+            long updated = current - amount;
+            if (balance.compareAndSet(current, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    // Whether taking a positive amount off the balance leaves it under the minimum. A result too
+    // small for a long is under any minimum, so it is declined rather than left to overflow.
+    private static boolean belowMinimum(long current, long amount, long minBalance) {
+        return current < Long.MIN_VALUE + amount || current - amount < minBalance;
+    }
+}
+
+// The two built-in products under their own names; any other product is a plain Account.
+class CheckingAccount extends Account {
+    static final char TYPE = 'C';
+
+    public CheckingAccount(String accountNumber, String accountHolder, long balance) {
+        super(accountNumber, accountHolder, balance, Products.CHECKING);
+    }
+}
+
+class SavingsAccount extends Account {
+    static final char TYPE = 'S';
+
+    public SavingsAccount(String accountNumber, String accountHolder, long balance) {
+        super(accountNumber, accountHolder, balance, Products.SAVINGS);
+    }
+}
+
+// An account product: what its accounts may do, as data. The kind is the family it belongs to and
+// decides what the limit means (C: checking, the limit is the overdraft; S: savings, the limit caps
+// each withdrawal and the balance cannot go below zero). Fees and interest rates are for the
+// periodic batches. The code is what the journal and snapshots store.
+final class Product {
+    final String code;
+    final String name;
+    final char kind;
+    final WithdrawalLimits limits;
+    // charged once a month, in cents
+    final long monthlyFee;
+    // yearly, in basis points: on positive balances, and on the overdrawn part of negative ones
+    final int interestRateBps;
+    final int overdraftRateBps;
+
+    Product(String code, String name, char kind, WithdrawalLimits limits, long monthlyFee, int interestRateBps,
+            int overdraftRateBps) {
+        if (kind != CheckingAccount.TYPE && kind != SavingsAccount.TYPE) {
+            throw new IllegalArgumentException("Unknown product kind for " + code + ": " + kind);
+        }
+        this.code = code;
+        this.name = name;
+        this.kind = kind;
+        this.limits = limits;
+        this.monthlyFee = monthlyFee;
+        this.interestRateBps = interestRateBps;
+        this.overdraftRateBps = overdraftRateBps;
+    }
+
+    // Turns the rules into the flat form withdrawals check against.
+    WithdrawalRules compile(WithdrawalLimits limits) {
+        if (kind == CheckingAccount.TYPE) {
+            return new WithdrawalRules(limits, new long[0], new InsufficientFundsException[0],
+                    -limits.limit, InsufficientFundsException.OVERDRAFT_LIMIT_EXCEEDED);
+        }
+        boolean capped = limits.limit != WithdrawalLimits.NONE;
+        return new WithdrawalRules(limits, capped ? new long[] {limits.limit} : new long[0],
+                capped ? new InsufficientFundsException[] {InsufficientFundsException.SAVINGS_LIMIT_EXCEEDED}
+                        : new InsufficientFundsException[0],
+                0, InsufficientFundsException.INSUFFICIENT_FUNDS);
+    }
+}
+
+// A product's rules compiled for one set of limits. Every product comes down to the same steps,
+// a run of per-amount caps, a balance floor and the daily/rolling caps, so a withdrawal is a few
+// compares over arrays whatever the product is, with no per-product code to dispatch to.
+final class WithdrawalRules {
+    final WithdrawalLimits limits;
+    private final long[] maxAmounts;
+    private final InsufficientFundsException[] maxAmountFailures;
+    // the balance may not drop below this, or the withdrawal fails with belowMinimum
+    final long minimumBalance;
+    final InsufficientFundsException belowMinimum;
+    // whether there is a daily or rolling cap to track
+    final boolean capped;
+
+    WithdrawalRules(WithdrawalLimits limits, long[] maxAmounts, InsufficientFundsException[] maxAmountFailures,
+                    long minimumBalance, InsufficientFundsException belowMinimum) {
+        this.limits = limits;
+        this.maxAmounts = maxAmounts;
+        this.maxAmountFailures = maxAmountFailures;
+        this.minimumBalance = minimumBalance;
+        this.belowMinimum = belowMinimum;
+        this.capped = limits.hasCaps();
+    }
+
+    // the rules that do not depend on the balance
+    void checkAmount(long amount) throws InsufficientFundsException {
+        for (int i = 0; i < maxAmounts.length; i++) {
+            if (amount > maxAmounts[i]) {
+                throw maxAmountFailures[i];
+            }
+        }
+    }
+}
+
+// The product registry. Checking (C) and Savings (S) are built in; -Datm.products names a properties
+// file that can change them or add more, one block of keys per product code:
+//   <code>.name, <code>.kind (checking or savings), <code>.limitDollars, <code>.dailyDollars,
+//   <code>.rollingDollars (negative for no cap), <code>.monthlyFeeCents, <code>.interestBps,
+//   <code>.overdraftInterestBps
+// The built-in limits can also be set with -Datm.limits.<checking|savings>.<limit|daily|rolling>Dollars.
+final class Products {
+    static final Product CHECKING;
+    static final Product SAVINGS;
+    private static final Map<String, Product> products = new ConcurrentHashMap<>();
+
+    static {
+        Properties file = new Properties();
+        String path = System.getProperty("atm.products");
+        if (path != null) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+                file.load(reader);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read products from " + path, e);
+            }
+        }
+        CHECKING = load(file, "C", new Product("C", "Checking", CheckingAccount.TYPE, builtInLimits("checking", 100, -1, -1),
+                Money.ofDollars(5), 0, 1800));
+        SAVINGS = load(file, "S", new Product("S", "Savings", SavingsAccount.TYPE, builtInLimits("savings", 500, 1000, 1000),
+                0, 200, 0));
+        for (String key : file.stringPropertyNames()) {
+            if (key.endsWith(".kind")) {
+                String code = key.substring(0, key.length() - ".kind".length());
+                if (!products.containsKey(code)) {
+                    load(file, code, null);
+                }
+            }
+        }
+    }
+
+    private Products() {
+    }
+
+    private static WithdrawalLimits builtInLimits(String type, long limitDollars, long dailyDollars, long rollingDollars) {
+        String prefix = "atm.limits." + type + ".";
+        return new WithdrawalLimits(WithdrawalLimits.dollars(Long.getLong(prefix + "limitDollars", limitDollars)),
+                WithdrawalLimits.dollars(Long.getLong(prefix + "dailyDollars", dailyDollars)),
+                WithdrawalLimits.dollars(Long.getLong(prefix + "rollingDollars", rollingDollars)));
+    }
+
+    // Reads a product's keys from the file, taking anything missing from the given defaults.
+    private static Product load(Properties file, String code, Product defaults) {
+        String kindName = file.getProperty(code + ".kind");
+        char kind;
+        if (kindName == null) {
+            kind = defaults.kind;
+        } else if (kindName.equals("checking")) {
+            kind = CheckingAccount.TYPE;
+        } else if (kindName.equals("savings")) {
+            kind = SavingsAccount.TYPE;
+        } else {
+            // a misspelled kind must not quietly become a checking product with an overdraft
+            throw new IllegalArgumentException("Unknown product kind for " + code + ": \"" + kindName
+                    + "\" (expected checking or savings)");
+        }
+        WithdrawalLimits limits = new WithdrawalLimits(
+                dollars(file, code + ".limitDollars", defaults == null ? 0 : defaults.limits.limit),
+                dollars(file, code + ".dailyDollars", defaults == null ? WithdrawalLimits.NONE : defaults.limits.daily),
+                dollars(file, code + ".rollingDollars", defaults == null ? WithdrawalLimits.NONE : defaults.limits.rolling));
+        Product product = new Product(code, file.getProperty(code + ".name", defaults == null ? code : defaults.name), kind,
+                limits, Long.parseLong(file.getProperty(code + ".monthlyFeeCents",
+                        String.valueOf(defaults == null ? 0 : defaults.monthlyFee))),
+                Integer.parseInt(file.getProperty(code + ".interestBps",
+                        String.valueOf(defaults == null ? 0 : defaults.interestRateBps))),
+                Integer.parseInt(file.getProperty(code + ".overdraftInterestBps",
+                        String.valueOf(defaults == null ? 0 : defaults.overdraftRateBps))));
+        products.put(code, product);
+        return product;
+    }
+
+    private static long dollars(Properties file, String key, long defaultCents) {
+        String value = file.getProperty(key);
+        return value == null ? defaultCents : WithdrawalLimits.dollars(Long.parseLong(value.trim()));
+    }
+
+    static Product find(String code) {
+        return products.get(code);
+    }
+
+    static Product get(String code) {
+        Product product = products.get(code);
+        if (product == null) {
+            throw new IllegalArgumentException("Unknown account product: " + code);
+        }
+        return product;
+    }
+
+    static Collection<Product> all() {
+        return products.values();
+    }
+}
+
+// An account's withdrawal limits: its product's limit (overdraft for checking products, per-withdrawal
+// cap for savings products) plus caps on what may be withdrawn per calendar day and per rolling
+// 24 hours. Amounts in cents; Long.MAX_VALUE means no cap. Products supply the defaults.
+final class WithdrawalLimits {
+    static final long NONE = Long.MAX_VALUE;
+
+    final long limit;
+    final long daily;
+    final long rolling;
+
+    WithdrawalLimits(long limit, long daily, long rolling) {
+        if (limit < 0 || daily <= 0 || rolling <= 0) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        this.limit = limit;
+        this.daily = daily;
+        this.rolling = rolling;
+    }
+
+    // whole dollars, a negative amount meaning no cap
+    static long dollars(long dollars) {
+        return dollars < 0 ? NONE : Money.ofDollars(dollars);
+    }
+
+    boolean hasCaps() {
+        return daily != NONE || rolling != NONE;
+    }
+
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeLong(limit);
+        out.writeLong(daily);
+        out.writeLong(rolling);
+    }
+
+    static WithdrawalLimits readSnapshot(DataInputStream in) throws IOException {
+        return new WithdrawalLimits(in.readLong(), in.readLong(), in.readLong());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof WithdrawalLimits)) {
+            return false;
+        }
+        WithdrawalLimits other = (WithdrawalLimits) o;
+        return limit == other.limit && daily == other.daily && rolling == other.rolling;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(limit) * 31 * 31 + Long.hashCode(daily) * 31 + Long.hashCode(rolling);
+    }
+}
+
+// What an account has withdrawn recently: 24 hourly buckets for the rolling cap and a running
+// total for the current calendar day (in the JVM's time zone). A check never looks at the
+// transaction history or adds buckets up; buckets are emptied as the clock passes them and the
+// totals kept up to date, so checking and recording are O(1). Transfers out count as withdrawals.
+final class WithdrawalWindow {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final int HOURS = 24;
+
+    private final long[] hours = new long[HOURS];
+    // the hour (since the epoch) of the newest bucket; buckets older than HOURS before it are empty
+    private long newestHour;
+    private long rollingTotal;
+    private long dayStart;
+    private long dayEnd;
+    private long dayTotal;
+
+    synchronized void check(long amount, long now, WithdrawalLimits limits) throws InsufficientFundsException {
+        advance(now);
+        if (amount > limits.daily - dayTotal) {
+            throw InsufficientFundsException.DAILY_LIMIT_REACHED;
+        }
+        if (amount > limits.rolling - rollingTotal) {
+            throw InsufficientFundsException.ROLLING_LIMIT_REACHED;
+        }
+    }
+
+    // Checks and counts the withdrawal in one step, so concurrent withdrawals cannot both slip under a cap.
+    synchronized void reserve(long amount, long now, WithdrawalLimits limits) throws InsufficientFundsException {
+        check(amount, now, limits);
+        add(amount, now);
+    }
+
+    // Takes back a reservation whose withdrawal did not go through.
+    synchronized void release(long amount, long reservedAt) {
+        add(-amount, reservedAt);
+    }
+
+    // Counts a withdrawal made at the given time, e.g. one replayed from the journal.
+    synchronized void record(long amount, long timestamp) {
+        advance(timestamp);
+        add(amount, timestamp);
+    }
+
+    private void add(long amount, long timestamp) {
+        long hour = timestamp / HOUR;
+        if (hour <= newestHour - HOURS || hour > newestHour) {
+            return;
+        }
+        hours[(int) (hour % HOURS)] += amount;
+        rollingTotal += amount;
+        if (timestamp >= dayStart && timestamp < dayEnd) {
+            dayTotal += amount;
+        }
+    }
+
+    private void advance(long now) {
+        long hour = now / HOUR;
+        if (hour > newestHour) {
+            long from = Math.max(newestHour + 1, hour - HOURS + 1);
+            for (long h = from; h <= hour; h++) {
+                int slot = (int) (h % HOURS);
+                rollingTotal -= hours[slot];
+                hours[slot] = 0;
+            }
+            newestHour = hour;
+        }
+        if (now >= dayEnd) {
+            ZoneId zone = ZoneId.systemDefault();
+            LocalDate today = Instant.ofEpochMilli(now).atZone(zone).toLocalDate();
+            dayStart = today.atStartOfDay(zone).toInstant().toEpochMilli();
+            dayEnd = today.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            dayTotal = 0;
+        }
+    }
+
+    synchronized void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeLong(newestHour);
+        for (long amount : hours) {
+            out.writeLong(amount);
+        }
+        out.writeLong(dayStart);
+        out.writeLong(dayEnd);
+        out.writeLong(dayTotal);
+    }
+
+    static WithdrawalWindow readSnapshot(DataInputStream in) throws IOException {
+        WithdrawalWindow window = new WithdrawalWindow();
+        window.newestHour = in.readLong();
+        for (int i = 0; i < HOURS; i++) {
+            window.hours[i] = in.readLong();
+            window.rollingTotal += window.hours[i];
+        }
+        window.dayStart = in.readLong();
+        window.dayEnd = in.readLong();
+        window.dayTotal = in.readLong();
+        return window;
+    }
+}
+
+// Where an account's balance lives. Besides the balance it keeps the seq of the last journal
+// record applied to it, so replay can tell which records it already has.
+abstract class BalanceCell {
+    abstract long get();
+
+    abstract boolean compareAndSet(long expected, long updated);
+
+    abstract long lastSeq();
+
+    // Called under the account lock around a journaled change.
+    abstract void beginUpdate(long seq);
+
+    abstract void endUpdate(long seq);
+
+    // Where the cell keeps a copy of the account's limit next to the balance, brings it up to date.
+    void limitChanged(long limit) {
+    }
+}
+
+final class HeapBalanceCell extends BalanceCell {
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(HeapBalanceCell.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long value;
+    private long lastSeq;
+
+    HeapBalanceCell(long value) {
+        this.value = value;
+    }
+
+    @Override
+    long get() {
+        return value;
+    }
+
+    @Override
+    boolean compareAndSet(long expected, long updated) {
+        return VALUE.compareAndSet(this, expected, updated);
+    }
+
+    @Override
+    long lastSeq() {
+        return lastSeq;
+    }
+
+    @Override
+    void beginUpdate(long seq) {
+    }
+
+    @Override
+    void endUpdate(long seq) {
+        lastSeq = seq;
+    }
+}
+
+// Keeps the most recent entries in primitive columns used as a ring. The columns start small and
+// grow up to CAPACITY; past that the oldest half is handed to the SpillStore as one chunk, so heap
+// use per account stays bounded however long the history gets. Nothing touches the disk until an
+// account first spills, which keeps opening millions of accounts cheap.
+class TransactionHistory {
+    static final byte DEPOSIT = 1;
+    static final byte WITHDRAWAL = 2;
+    static final byte TRANSFER = 3;
+    static final byte INTEREST = 4;
+    static final byte FEE = 5;
+    static final byte OVERDRAFT_INTEREST = 6;
+
+    static final int CAPACITY = Math.max(2, Integer.getInteger("atm.history.capacity", 64));
+    private static final int INITIAL_CAPACITY = Math.min(4, CAPACITY);
+    // lives next to the journal so that spilled entries survive a restart together with the snapshot
+    static final Path SPILL_DIRECTORY = Paths.get(System.getProperty("atm.history.dir",
+            Paths.get(System.getProperty("atm.data.dir", "atm-data"), "history").toString()));
+
+    interface Visitor {
+        void visit(byte type, long amount, long timestamp, String counterparty);
+    }
+
+    // Like Visitor, but returns false to stop reading.
+    interface Cursor {
+        boolean visit(byte type, long amount, long timestamp, String counterparty);
+    }
+
+    // The address of every spilled chunk oldest first, with the number of entries spilled before it.
+    // Spilled chunks never change, so the index only grows; it is built by walking back from the newest
+    // chunk the first time a read needs it, and guarded by itself.
+    private static final class SpillIndex {
+        long[] chunks = new long[4];
+        long[] firstEntries = new long[4];
+        int size;
+        long entries;
+    }
+
+    private final String accountHolder;
+    private final String accountNumber;
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private long[] amounts = new long[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private String[] counterparties = new String[INITIAL_CAPACITY];
+    private int head;
+    private int count;
+    private long spilled;
+    // address of the newest spilled chunk; each chunk points back at the one before it
+    private long lastChunk = SpillStore.NONE;
+    // created by the first read that goes into the spilled chunks
+    private SpillIndex spillIndex;
+
+    public TransactionHistory(String accountHolder, String accountNumber) {
+        this.accountHolder = accountHolder;
+        this.accountNumber = accountNumber;
+    }
+
+    public synchronized void add(byte type, long amount, String counterparty, long timestamp) {
+        if (count == types.length) {
+            if (count < CAPACITY) {
+                grow(Math.min(CAPACITY, count * 2));
+            } else {
+                spill(CAPACITY / 2);
+            }
+        }
+        int slot = (head + count) % types.length;
+        types[slot] = type;
+        amounts[slot] = amount;
+        timestamps[slot] = timestamp;
+        counterparties[slot] = counterparty;
+        count++;
+    }
+
+    public synchronized long size() {
+        return spilled + count;
+    }
+
+    // Visits every entry oldest first, reading the spilled part from disk before the in-memory ring.
+    public void forEach(Visitor visitor) {
+        read(0, (type, amount, timestamp, counterparty) -> {
+            visitor.visit(type, amount, timestamp, counterparty);
+            return true;
+        });
+    }
+
+    // Visits entries oldest first from the given index (0 is the oldest entry ever added) until the
+    // cursor returns false, and returns how many entries there are. The ring is copied under the
+    // monitor and the spilled chunks are read after letting go of it, so add() never waits for the
+    // disk; the spill index finds the chunk to start at instead of walking every chunk.
+    long read(long first, Cursor cursor) {
+        long total;
+        long spilledEntries;
+        long newestChunk;
+        SpillIndex index;
+        byte[] ringTypes;
+        long[] ringAmounts;
+        long[] ringTimestamps;
+        String[] ringCounterparties;
+        synchronized (this) {
+            total = spilled + count;
+            spilledEntries = spilled;
+            newestChunk = lastChunk;
+            if (first < spilled && spillIndex == null) {
+                spillIndex = new SpillIndex();
+            }
+            index = spillIndex;
+            int from = (int) Math.min(count, Math.max(0, first - spilled));
+            ringTypes = new byte[count - from];
+            ringAmounts = new long[count - from];
+            ringTimestamps = new long[count - from];
+            ringCounterparties = new String[count - from];
+            for (int i = from; i < count; i++) {
+                int slot = (head + i) % types.length;
+                ringTypes[i - from] = types[slot];
+                ringAmounts[i - from] = amounts[slot];
+                ringTimestamps[i - from] = timestamps[slot];
+                ringCounterparties[i - from] = counterparties[slot];
+            }
+        }
+        if (first < spilledEntries && !readSpilled(index, first, spilledEntries, newestChunk, cursor)) {
+            return total;
+        }
+        for (int i = 0; i < ringTypes.length; i++) {
+            if (!cursor.visit(ringTypes[i], ringAmounts[i], ringTimestamps[i], ringCounterparties[i])) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    // Reads spilled entries from the first one asked for; false if the cursor stopped.
+    private boolean readSpilled(SpillIndex index, long first, long spilledEntries, long newestChunk, Cursor cursor) {
+        SpillStore store = SpillStore.get();
+        long[] chunks;
+        long[] firstEntries;
+        int size;
+        synchronized (index) {
+            if (index.entries < spilledEntries) {
+                // walk back to the newest chunk already indexed, then add the chunks found oldest first
+                long[] found = new long[4];
+                int[] counts = new int[4];
+                int added = 0;
+                for (long address = newestChunk, missing = spilledEntries - index.entries; missing > 0; added++) {
+                    if (address == SpillStore.NONE) {
+                        throw new IllegalStateException("Spilled history of " + accountHolder + "/" + accountNumber + " ends early");
+                    }
+                    ByteBuffer header = store.read(address, false);
+                    if (added == found.length) {
+                        found = Arrays.copyOf(found, added * 2);
+                        counts = Arrays.copyOf(counts, added * 2);
+                    }
+                    found[added] = address;
+                    counts[added] = header.getInt(8);
+                    missing -= counts[added];
+                    address = header.getLong(0);
+                }
+                for (int i = added - 1; i >= 0; i--) {
+                    if (index.size == index.chunks.length) {
+                        index.chunks = Arrays.copyOf(index.chunks, index.size * 2);
+                        index.firstEntries = Arrays.copyOf(index.firstEntries, index.size * 2);
+                    }
+                    index.chunks[index.size] = found[i];
+                    index.firstEntries[index.size] = index.entries;
+                    index.size++;
+                    index.entries += counts[i];
+                }
+            }
+            // entries already indexed never move, so these can be read after letting go of the index
+            chunks = index.chunks;
+            firstEntries = index.firstEntries;
+            size = index.size;
+        }
+        int chunk = Arrays.binarySearch(firstEntries, 0, size, first);
+        if (chunk < 0) {
+            chunk = -chunk - 2;
+        }
+        try {
+            long entry = firstEntries[chunk];
+            for (; chunk < size && entry < spilledEntries; chunk++) {
+                ByteBuffer bytes = store.read(chunks[chunk], true);
+                int entries = bytes.getInt(8);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.array(), SpillStore.HEADER, bytes.getInt(12)));
+                for (int i = 0; i < entries && entry < spilledEntries; i++, entry++) {
+                    byte type = in.readByte();
+                    long amount = in.readLong();
+                    long timestamp = in.readLong();
+                    String counterparty = in.readUTF();
+                    if (entry >= first && !cursor.visit(type, amount, timestamp, counterparty.isEmpty() ? null : counterparty)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read spilled history of " + accountHolder + "/" + accountNumber, e);
+        }
+    }
+
+    public void print(PrintStream out) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        forEach((type, amount, timestamp, counterparty) ->
+                out.println(dateFormat.format(new Date(timestamp)) + "  " + describe(type, amount, counterparty)));
+    }
+
+    // Only the address of the newest spilled chunk is stored; the chunks are in the spill store.
+    synchronized void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeLong(spilled);
+        out.writeLong(lastChunk);
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % types.length;
+            out.writeByte(types[slot]);
+            out.writeLong(amounts[slot]);
+            out.writeLong(timestamps[slot]);
+            out.writeUTF(counterparties[slot] == null ? "" : counterparties[slot]);
+        }
+    }
+
+    // Entries spilled after the snapshot was taken are still in the snapshot's ring (or come back
+    // from the journal), so the chunks they went into are never reached from the restored history.
+    static TransactionHistory readSnapshot(String accountHolder, String accountNumber, DataInputStream in) throws IOException {
+        TransactionHistory history = new TransactionHistory(accountHolder, accountNumber);
+        history.spilled = in.readLong();
+        history.lastChunk = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            long amount = in.readLong();
+            long timestamp = in.readLong();
+            String counterparty = in.readUTF();
+            history.add(type, amount, counterparty.isEmpty() ? null : counterparty, timestamp);
+        }
+        return history;
+    }
+
+    static String describe(byte type, long amount, String counterparty) {
+        switch (type) {
+            case DEPOSIT:
+                return "Deposited: " + Money.format(amount);
+            case WITHDRAWAL:
+                return "Withdrawn: " + Money.format(amount);
+            case TRANSFER:
+                return "Transferred: " + Money.format(amount) + " to " + counterparty;
+            case INTEREST:
+                return "Interest: " + Money.format(amount);
+            case FEE:
+                return "Monthly fee: " + Money.format(amount);
+            case OVERDRAFT_INTEREST:
+                return "Overdraft interest: " + Money.format(amount);
+            default:
+                return "Unknown transaction: " + Money.format(amount);
+        }
+    }
+
+    private void grow(int capacity) {
+        byte[] newTypes = new byte[capacity];
+        long[] newAmounts = new long[capacity];
+        long[] newTimestamps = new long[capacity];
+        String[] newCounterparties = new String[capacity];
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % types.length;
+            newTypes[i] = types[slot];
+            newAmounts[i] = amounts[slot];
+            newTimestamps[i] = timestamps[slot];
+            newCounterparties[i] = counterparties[slot];
+        }
+        types = newTypes;
+        amounts = newAmounts;
+        timestamps = newTimestamps;
+        counterparties = newCounterparties;
+        head = 0;
+    }
+
+    // Only encodes the entries; the store writes them to disk on its own thread.
+    private void spill(int entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(entries * 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (int i = 0; i < entries; i++) {
+                int slot = (head + i) % types.length;
+                out.writeByte(types[slot]);
+                out.writeLong(amounts[slot]);
+                out.writeLong(timestamps[slot]);
+                out.writeUTF(counterparties[slot] == null ? "" : counterparties[slot]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lastChunk = SpillStore.get().append(lastChunk, entries, bytes.toByteArray());
+        for (int i = 0; i < entries; i++) {
+            counterparties[(head + i) % types.length] = null;
+        }
+        head = (head + entries) % types.length;
+        count -= entries;
+        spilled += entries;
+    }
+}
+
+// The spilled part of every account's history, in append-only segment files shared by all accounts.
+// Each spill is one chunk: a header with the address of the account's previous chunk, the number of
+// entries and their length in bytes, then the entries. An address is a position in all segments laid
+// end to end, and a segment file is named after the address it starts at, so an account only keeps
+// the address of its newest chunk and finds the older ones by walking back from there. Spills queue
+// their chunk for a background writer and carry on; until it is written, a chunk is read from memory.
+// Chunks spilled after the last snapshot are not pointed at again after a crash and are left in place.
+final class SpillStore {
+    static final long NONE = -1;
+    // previous chunk, entries and length
+    static final int HEADER = 16;
+
+    private static final long SEGMENT_BYTES = Math.max(1 << 20, Long.getLong("atm.history.segmentBytes", 64L << 20));
+    // spills wait for the writer once it is this far behind
+    private static final long QUEUE_BYTES = Math.max(1 << 20, Long.getLong("atm.history.queueBytes", 16L << 20));
+    private static volatile SpillStore instance;
+
+    private final Path directory;
+    private final ConcurrentSkipListSet<Long> segmentStarts = new ConcurrentSkipListSet<>();
+    private final Map<Long, FileChannel> channels = new ConcurrentHashMap<>();
+    // chunks the writer has not written yet, by address; each is removed once it is in its segment
+    private final ConcurrentSkipListMap<Long, byte[]> unwritten = new ConcurrentSkipListMap<>();
+    // segments written to since they were last forced
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition written = lock.newCondition();
+    private final Thread writer;
+    private volatile boolean running = true;
+    // guarded by lock
+    private long end;
+    private long writtenEnd;
+    private long segmentStart;
+    private long queuedBytes;
+    private IOException failure;
+
+    private SpillStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "spill-*.hist")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segmentStarts.add(Long.parseLong(name.substring("spill-".length(), name.length() - ".hist".length())));
+            }
+        }
+        if (segmentStarts.isEmpty()) {
+            segmentStarts.add(0L);
+        }
+        segmentStart = segmentStarts.last();
+        // new chunks go after everything in the last segment, including a torn chunk nothing points at
+        Path last = segmentFile(segmentStart);
+        end = segmentStart + (Files.exists(last) ? Files.size(last) : 0);
+        writtenEnd = end;
+        writer = new Thread(this::drainLoop, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // write what is still queued when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            running = false;
+            try {
+                writer.join(5_000);
+            } catch (InterruptedException e) {
+                // exiting anyway
+            }
+        }));
+    }
+
+    // Opened by the first spill or spilled read, in the directory TransactionHistory spills to.
+    static SpillStore get() {
+        SpillStore store = instance;
+        if (store == null) {
+            synchronized (SpillStore.class) {
+                store = instance;
+                if (store == null) {
+                    try {
+                        instance = store = new SpillStore(TransactionHistory.SPILL_DIRECTORY);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not open history directory " + TransactionHistory.SPILL_DIRECTORY, e);
+                    }
+                }
+            }
+        }
+        return store;
+    }
+
+    // Returns once every chunk queued so far is written and forced to disk. A snapshot calls this
+    // after copying the accounts and before it is renamed into place, so it never points at a chunk
+    // a power loss could take away.
+    static void force() throws IOException {
+        SpillStore store = instance;
+        if (store != null) {
+            store.forceQueued();
+        }
+    }
+
+    private void forceQueued() throws IOException {
+        lock.lock();
+        try {
+            long target = end;
+            while (writtenEnd < target && failure == null) {
+                written.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new IOException("History spill files are no longer writable", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Long start : dirty) {
+            dirty.remove(start);
+            channel(start).force(false);
+        }
+    }
+
+    private Path segmentFile(long start) {
+        return directory.resolve(String.format("spill-%020d.hist", start));
+    }
+
+    private FileChannel channel(long start) throws IOException {
+        FileChannel channel = channels.get(start);
+        if (channel == null) {
+            synchronized (channels) {
+                channel = channels.get(start);
+                if (channel == null) {
+                    channel = FileChannel.open(segmentFile(start), StandardOpenOption.CREATE,
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channels.put(start, channel);
+                }
+            }
+        }
+        return channel;
+    }
+
+    // Queues the entries as a chunk after the given one and returns its address. A chunk never
+    // straddles two segments; one that does not fit in what is left of a segment starts the next.
+    long append(long previous, int entries, byte[] body) {
+        byte[] chunk = new byte[HEADER + body.length];
+        ByteBuffer.wrap(chunk).putLong(previous).putInt(entries).putInt(body.length).put(body);
+        lock.lock();
+        try {
+            while (queuedBytes > QUEUE_BYTES && failure == null) {
+                written.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("History spill files are no longer writable", failure);
+            }
+            if (end > segmentStart && end + chunk.length > segmentStart + SEGMENT_BYTES) {
+                segmentStart = end;
+                segmentStarts.add(end);
+            }
+            long address = end;
+            unwritten.put(address, chunk);
+            end += chunk.length;
+            queuedBytes += chunk.length;
+            return address;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The chunk at the address, from its header on; just the header unless the entries are wanted too.
+    ByteBuffer read(long address, boolean entries) {
+        byte[] queued = unwritten.get(address);
+        if (queued != null) {
+            return ByteBuffer.wrap(queued);
+        }
+        // not queued any more, so the writer has finished it
+        long start = segmentStarts.floor(address);
+        try {
+            FileChannel channel = channel(start);
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            readFully(channel, header, address - start);
+            if (!entries) {
+                return header;
+            }
+            ByteBuffer chunk = ByteBuffer.allocate(HEADER + header.getInt(12));
+            chunk.put(header.flip());
+            readFully(channel, chunk, address - start + HEADER);
+            return chunk;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read history file " + segmentFile(start), e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Spilled chunk ends past the end of the file");
+            }
+            position += read;
+        }
+    }
+
+    // Writes the queued chunks oldest first, as many as follow each other in one segment with one write.
+    private void drainLoop() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        while (true) {
+            boolean stopping = !running;
+            Map.Entry<Long, byte[]> first = unwritten.firstEntry();
+            if (first == null) {
+                if (stopping) {
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                continue;
+            }
+            long address = first.getKey();
+            long start = segmentStarts.floor(address);
+            Long next = segmentStarts.higher(start);
+            long limit = next == null ? Long.MAX_VALUE : next;
+            long position = address;
+            batch.clear();
+            for (Map.Entry<Long, byte[]> chunk : unwritten.tailMap(address).entrySet()) {
+                if (chunk.getKey() != position || position >= limit || batch.size() == 1024) {
+                    break;
+                }
+                batch.add(ByteBuffer.wrap(chunk.getValue()));
+                position += chunk.getValue().length;
+            }
+            try {
+                FileChannel channel = channel(start);
+                channel.position(address - start);
+                ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                for (long remaining = position - address; remaining > 0; ) {
+                    remaining -= channel.write(buffers);
+                }
+                dirty.add(start);
+            } catch (IOException e) {
+                // the queued chunks can still be read; further spills fail
+                lock.lock();
+                try {
+                    failure = e;
+                    written.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            unwritten.headMap(position).clear();
+            lock.lock();
+            try {
+                queuedBytes -= position - address;
+                writtenEnd = position;
+                written.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
+
+// Accounts decline with the shared instances below: they have no stack trace and cannot collect
+// suppressed exceptions, so a declined withdrawal allocates nothing and costs about as much as one
+// that goes through. Callers only ever need the reason and the message.
+class InsufficientFundsException extends Exception {
+    enum Reason { OVERDRAFT_LIMIT, SAVINGS_LIMIT, INSUFFICIENT_FUNDS, DAILY_LIMIT, ROLLING_LIMIT }
+
+    static final InsufficientFundsException OVERDRAFT_LIMIT_EXCEEDED =
+            new InsufficientFundsException(Reason.OVERDRAFT_LIMIT, "Withdrawal failed: Overdraft limit exceeded.", false);
+    static final InsufficientFundsException SAVINGS_LIMIT_EXCEEDED =
+            new InsufficientFundsException(Reason.SAVINGS_LIMIT, "Withdrawal failed: Exceeds savings withdrawal limit.", false);
+    static final InsufficientFundsException INSUFFICIENT_FUNDS =
+            new InsufficientFundsException(Reason.INSUFFICIENT_FUNDS, "Withdrawal failed: Insufficient funds.", false);
+    static final InsufficientFundsException TRANSFER_INSUFFICIENT_FUNDS =
+            new InsufficientFundsException(Reason.INSUFFICIENT_FUNDS, "Transfer failed: Insufficient funds.", false);
+    static final InsufficientFundsException DAILY_LIMIT_REACHED =
+            new InsufficientFundsException(Reason.DAILY_LIMIT, "Withdrawal failed: Daily withdrawal limit reached.", false);
+    static final InsufficientFundsException ROLLING_LIMIT_REACHED =
+            new InsufficientFundsException(Reason.ROLLING_LIMIT, "Withdrawal failed: 24-hour withdrawal limit reached.", false);
+
+    private final Reason reason;
+
+    public InsufficientFundsException(String message) {
+        this(Reason.INSUFFICIENT_FUNDS, message);
+    }
+
+    public InsufficientFundsException(Reason reason, String message) {
+        this(reason, message, true);
+    }
+
+    private InsufficientFundsException(Reason reason, String message, boolean stackTrace) {
+        super(message, null, stackTrace, stackTrace);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
+
+// Counters and latency histograms for the hot operations, cheap enough to leave on in production.
+// Counts are LongAdders and histograms are striped by thread, so concurrent sessions do not fight
+// over one cache line. Every operation is counted, but only a random one in -Datm.metrics.sampleEvery
+// (default 8, rounded to a power of two) is timed, since reading the clock twice costs more than the
+// cheaper operations themselves. Read them through JMX (ATM:type=Metrics) or the periodic text dump
+// (-Datm.metrics.dumpSeconds); -Datm.metrics=false turns recording off.
+final class Metrics {
+    enum Operation { DEPOSIT, WITHDRAW, TRANSFER, AUTHENTICATE, LOOKUP }
+
+    static final boolean ENABLED = !"false".equals(System.getProperty("atm.metrics"));
+    private static final int SAMPLE_MASK = Integer.highestOneBit(Math.max(1, Integer.getInteger("atm.metrics.sampleEvery", 8))) - 1;
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final InsufficientFundsException.Reason[] REASONS = InsufficientFundsException.Reason.values();
+    private static final LongAdder[] counts = adders(OPERATIONS.length);
+    private static final StripedHistogram[] latencies = new StripedHistogram[OPERATIONS.length];
+    private static final LongAdder[] declines = adders(REASONS.length);
+
+    static {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new StripedHistogram();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    // Returns the start time if this operation is to be timed, otherwise 0.
+    static long start() {
+        if (!ENABLED || (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) != 0) {
+            return 0;
+        }
+        return System.nanoTime();
+    }
+
+    static void record(Operation operation, long started) {
+        if (ENABLED) {
+            counts[operation.ordinal()].increment();
+            if (started != 0) {
+                latencies[operation.ordinal()].record(System.nanoTime() - started);
+            }
+        }
+    }
+
+    static void declined(InsufficientFundsException.Reason reason) {
+        if (ENABLED) {
+            declines[reason.ordinal()].increment();
+        }
+    }
+
+    static long count(Operation operation) {
+        return counts[operation.ordinal()].sum();
+    }
+
+    static long declines(InsufficientFundsException.Reason reason) {
+        return declines[reason.ordinal()].sum();
+    }
+
+    // in nanoseconds
+    static long percentile(Operation operation, double percent) {
+        return latencies[operation.ordinal()].percentile(percent);
+    }
+
+    static String dump() {
+        StringBuilder text = new StringBuilder();
+        for (Operation operation : OPERATIONS) {
+            text.append(String.format("%-12s count=%d p50=%.1fus p99=%.1fus p99.9=%.1fus%n",
+                    operation.name().toLowerCase(), count(operation), percentile(operation, 50) / 1e3,
+                    percentile(operation, 99) / 1e3, percentile(operation, 99.9) / 1e3));
+        }
+        text.append("declined");
+        for (InsufficientFundsException.Reason reason : REASONS) {
+            text.append(' ').append(reason.name().toLowerCase()).append('=').append(declines(reason));
+        }
+        return text.append(System.lineSeparator()).toString();
+    }
+
+    static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("ATM:type=Metrics"));
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    // Prints the dump every interval until the JVM exits.
+    static void startDump(long intervalSeconds, PrintStream out) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> out.print(dump()), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Read-only attributes: <operation>.count, <operation>.p50Micros/p99Micros/p999Micros and declined.<reason>.
+    private static final class MetricsMBean implements DynamicMBean {
+        private static final String[] PERCENTILES = {"p50Micros", "p99Micros", "p999Micros"};
+        private static final double[] PERCENTS = {50, 99, 99.9};
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            int dot = attribute.indexOf('.');
+            if (dot > 0) {
+                String group = attribute.substring(0, dot).toUpperCase();
+                String name = attribute.substring(dot + 1);
+                if (group.equals("DECLINED")) {
+                    for (InsufficientFundsException.Reason reason : REASONS) {
+                        if (reason.name().equalsIgnoreCase(name)) {
+                            return declines(reason);
+                        }
+                    }
+                }
+                for (Operation operation : OPERATIONS) {
+                    if (operation.name().equals(group)) {
+                        if (name.equals("count")) {
+                            return count(operation);
+                        }
+                        for (int i = 0; i < PERCENTILES.length; i++) {
+                            if (PERCENTILES[i].equals(name)) {
+                                return percentile(operation, PERCENTS[i]) / 1e3;
+                            }
+                        }
+                    }
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // left out, as the DynamicMBean contract allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Operation operation : OPERATIONS) {
+                String prefix = operation.name().toLowerCase() + ".";
+                attributes.add(new MBeanAttributeInfo(prefix + "count", "long", "Completed operations", true, false, false));
+                for (String percentile : PERCENTILES) {
+                    attributes.add(new MBeanAttributeInfo(prefix + percentile, "double", "Latency in microseconds", true, false, false));
+                }
+            }
+            for (InsufficientFundsException.Reason reason : REASONS) {
+                attributes.add(new MBeanAttributeInfo("declined." + reason.name().toLowerCase(), "long",
+                        "Declined withdrawals and transfers", true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "ATM operation metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
+
+// Flight recorder events. All are disabled by default, so they cost next to nothing until a recording
+// turns them on, e.g. with a .jfc settings file that sets enabled=true for atm.Login,
+// atm.Transaction and atm.TransferLockWait (plus a threshold to keep only slow ones).
+@Name("atm.Login")
+@Label("ATM Login")
+@Category("ATM")
+@Enabled(false)
+@StackTrace(false)
+final class LoginEvent extends Event {
+    @Label("User")
+    String user;
+
+    @Label("Outcome")
+    String outcome;
+
+    void finish(String user, SessionStatus status) {
+        end();
+        if (shouldCommit()) {
+            this.user = user;
+            this.outcome = status.name();
+            commit();
+        }
+    }
+}
+
+@Name("atm.Transaction")
+@Label("ATM Transaction")
+@Description("A deposit, withdrawal or transfer, with its outcome: OK, a decline reason, or FAILED")
+@Category("ATM")
+@Enabled(false)
+@StackTrace(false)
+final class TransactionEvent extends Event {
+    static final String OK = "OK";
+    static final String FAILED = "FAILED";
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Account")
+    String account;
+
+    @Label("Target Account")
+    String target;
+
+    @Label("Amount (cents)")
+    long amount;
+
+    @Label("Outcome")
+    String outcome;
+
+    void finish(String operation, Account account, Account target, long amount, String outcome) {
+        end();
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.account = account.label();
+            this.target = target == null ? null : target.label();
+            this.amount = amount;
+            this.outcome = outcome;
+            commit();
+        }
+    }
+}
+
+@Name("atm.TransferLockWait")
+@Label("ATM Transfer Lock Wait")
+@Description("Time a transfer waited to lock both of its accounts")
+@Category("ATM")
+@Enabled(false)
+@StackTrace(false)
+final class TransferLockWaitEvent extends Event {
+    @Label("Account")
+    String account;
+
+    @Label("Target Account")
+    String target;
+
+    void finish(Account account, Account target) {
+        end();
+        if (shouldCommit()) {
+            this.account = account.label();
+            this.target = target.label();
+            commit();
+        }
+    }
+}
+
+// Audit trail of logins and transactions, written by a background thread so that no session ever
+// waits on the console or the disk. Sessions claim a slot in a bounded multi-producer ring with one
+// compare-and-set and fill in the preallocated entry there; the writer drains whatever is ready,
+// formats it and writes it in one batch. Off unless -Datm.audit.file names a file ("-" for stdout).
+// The journal is the durable record; if the writer falls a full ring behind, entries are dropped
+// and counted rather than slowing the sessions down.
+final class AuditLog {
+    static final byte LOGIN = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAW = 3;
+    static final byte TRANSFER = 4;
+    static final byte INTEREST = 5;
+    static final byte CHARGE = 6;
+
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("atm.audit.capacity", 64 * 1024)));
+    private static final AuditLog INSTANCE = open(System.getProperty("atm.audit.file"));
+
+    private static final class Entry {
+        long timestamp;
+        byte type;
+        String user;
+        Account account;
+        Account target;
+        long amount;
+        String outcome;
+    }
+
+    private final PrintStream out;
+    private final Entry[] entries = new Entry[CAPACITY];
+    // sequences[i] == position means slot i is free for the producer at that position,
+    // position + 1 means it holds that position's entry, ready for the writer
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+    // only touched by the writer thread
+    private long head;
+
+    private AuditLog(PrintStream out) {
+        this.out = out;
+        for (int i = 0; i < CAPACITY; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        writer = new Thread(this::drainLoop, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // write what is still queued when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            running = false;
+            try {
+                writer.join(5_000);
+            } catch (InterruptedException e) {
+                // exiting anyway
+            }
+        }));
+    }
+
+    private static AuditLog open(String file) {
+        if (file == null || file.isEmpty()) {
+            return null;
+        }
+        if (file.equals("-")) {
+            return new AuditLog(System.out);
+        }
+        try {
+            return new AuditLog(new PrintStream(new BufferedOutputStream(Files.newOutputStream(Paths.get(file),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024), false, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Could not open audit file " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    static void login(String user, SessionStatus status) {
+        if (INSTANCE != null) {
+            INSTANCE.append(LOGIN, user, null, null, 0, status.name());
+        }
+    }
+
+    static void transaction(byte type, Account account, Account target, long amount, String outcome) {
+        if (INSTANCE != null) {
+            INSTANCE.append(type, null, account, target, amount, outcome);
+        }
+    }
+
+    private void append(byte type, String user, Account account, Account target, long amount, String outcome) {
+        long position = tail.get();
+        while (true) {
+            long sequence = sequences.get((int) position & (CAPACITY - 1));
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                // the writer has not freed this slot yet
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        int slot = (int) position & (CAPACITY - 1);
+        Entry entry = entries[slot];
+        entry.timestamp = System.currentTimeMillis();
+        entry.type = type;
+        entry.user = user;
+        entry.account = account;
+        entry.target = target;
+        entry.amount = amount;
+        entry.outcome = outcome;
+        sequences.lazySet(slot, position + 1);
+    }
+
+    private void drainLoop() {
+        StringBuilder line = new StringBuilder(128);
+        while (true) {
+            boolean stopping = !running;
+            int written = 0;
+            while (true) {
+                int slot = (int) head & (CAPACITY - 1);
+                if (sequences.get(slot) != head + 1) {
+                    break;
+                }
+                Entry entry = entries[slot];
+                format(entry, line);
+                entry.user = null;
+                entry.account = null;
+                entry.target = null;
+                sequences.lazySet(slot, head + CAPACITY);
+                head++;
+                out.append(line);
+                written++;
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                out.println(Instant.now() + " AUDIT " + lost + " entries dropped, writer fell behind");
+            }
+            if (written > 0 || lost > 0) {
+                out.flush();
+            } else if (stopping) {
+                return;
+            } else {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+    }
+
+    private static void format(Entry entry, StringBuilder line) {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(entry.timestamp)).append(' ');
+        switch (entry.type) {
+            case LOGIN:
+                line.append("LOGIN ").append(entry.user);
+                break;
+            case DEPOSIT:
+                line.append("DEPOSIT ").append(entry.account.label()).append(' ').append(Money.format(entry.amount));
+                break;
+            case WITHDRAW:
+                line.append("WITHDRAW ").append(entry.account.label()).append(' ').append(Money.format(entry.amount));
+                break;
+            case INTEREST:
+                line.append("INTEREST ").append(entry.account.label()).append(' ').append(Money.format(entry.amount));
+                break;
+            case CHARGE:
+                line.append("CHARGE ").append(entry.account.label()).append(' ').append(Money.format(entry.amount));
+                break;
+            default:
+                line.append("TRANSFER ").append(entry.account.label()).append(" -> ").append(entry.target.label())
+                        .append(' ').append(Money.format(entry.amount));
+        }
+        line.append(' ').append(entry.outcome).append(System.lineSeparator());
+    }
+}
+
+// A latency histogram many threads can record into. Each thread picks a stripe by its id and bumps
+// a log-linear bucket there (16 sub-buckets per power of two, within about 6%); readers add the
+// stripes up. Reads are not a consistent cut, which is fine for monitoring.
+final class StripedHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = SUB_BUCKETS * 2;
+    private static final int BUCKETS = LINEAR + (64 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+    StripedHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    void record(long value) {
+        long thread = Thread.currentThread().getId();
+        int stripe = (int) ((thread * 0x9E3779B97F4A7C15L) >>> 40) & (STRIPES - 1);
+        stripes[stripe].getAndIncrement(index(Math.max(0, value)));
+    }
+
+    long percentile(double percent) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = stripe.get(i);
+                counts[i] += count;
+                total += count;
+            }
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percent / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(BUCKETS - 1);
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestValue(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
+
+enum FsyncPolicy {
+    // hand records to the OS but never force them to disk
+    NONE,
+    // each commit waits for an fsync, and one fsync covers every record queued behind it
+    GROUP,
+    // commits do not wait; a background thread writes and forces every atm.journal.fsyncMillis
+    INTERVAL
+}
+
+// Write-ahead log of every change to users and accounts. A record is appended before the
+// change is applied, and commit() returns once the record is as durable as the policy asks for.
+// No record is logged unless applying it cannot throw: callers check the rules and the overflow
+// of every sum it will make first, because replay applies records without deciding anything.
+// The log is split into segment files named after their first seq, so a snapshot can drop old ones.
+// One process at a time: opening takes an exclusive lock on the directory's lock file, so a batch
+// started next to a running server fails at once instead of writing into the same segments.
+class Journal implements AutoCloseable {
+    static final byte REGISTER_USER = 1;
+    static final byte OPEN_ACCOUNT = 2;
+    static final byte DEPOSIT = 3;
+    static final byte WITHDRAW = 4;
+    static final byte TRANSFER = 5;
+    static final byte SET_LIMITS = 6;
+    static final byte INTEREST = 7;
+    static final byte CHARGES = 8;
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+    // held until close()
+    private final FileLock directoryLock;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private long segmentStart;
+    private ScheduledExecutorService flusher;
+    private long lastSeq;
+    private long durableSeq;
+    private boolean flushing;
+    private IOException failure;
+
+    private Journal(Path directory, FsyncPolicy policy, FileLock directoryLock) {
+        this.directory = directory;
+        this.policy = policy;
+        this.directoryLock = directoryLock;
+    }
+
+    static Journal open(Path directory, FsyncPolicy policy) throws IOException {
+        Files.createDirectories(directory);
+        FileChannel lockFile = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock directoryLock;
+        try {
+            directoryLock = lockFile.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another Journal in this JVM
+            directoryLock = null;
+        }
+        if (directoryLock == null) {
+            lockFile.close();
+            throw new IOException("Data directory " + directory + " is in use by another process");
+        }
+        return new Journal(directory, policy, directoryLock);
+    }
+
+    private static Path segmentFile(Path directory, long firstSeq) {
+        return directory.resolve(String.format("journal-%020d.log", firstSeq));
+    }
+
+    private static List<Long> segments(Path directory) throws IOException {
+        List<Long> starts = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                starts.add(Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length())));
+            }
+        }
+        Collections.sort(starts);
+        return starts;
+    }
+
+    // Rebuilds users and accounts on top of a restored snapshot (or an empty ATM when snapshotSeq is 0).
+    // Must run before the journal is attached to the ATM. A torn record at the end of the last segment
+    // (crash in the middle of a write) is cut off.
+    int replay(ATM atm, long snapshotSeq) throws IOException {
+        int applied = 0;
+        lastSeq = snapshotSeq;
+        List<Long> starts = segments(directory);
+        for (int i = 0; i < starts.size(); i++) {
+            boolean last = i == starts.size() - 1;
+            Path file = segmentFile(directory, starts.get(i));
+            long validLength = 0;
+            try (FileChannel segment = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(segment)));
+                while (true) {
+                    byte[] bytes = readRecord(in, segment.size());
+                    if (bytes == null) {
+                        break;
+                    }
+                    DataInputStream entry = new DataInputStream(new ByteArrayInputStream(bytes));
+                    long seq = entry.readLong();
+                    byte op = entry.readByte();
+                    long timestamp = entry.readLong();
+                    String a = entry.readUTF();
+                    String b = entry.readUTF();
+                    String c = entry.readUTF();
+                    String d = entry.readUTF();
+                    long amount = entry.readLong();
+                    if (seq > snapshotSeq) {
+                        apply(atm, seq, op, timestamp, a, b, c, d, amount);
+                        applied++;
+                    }
+                    lastSeq = Math.max(lastSeq, seq);
+                    validLength += 8 + bytes.length;
+                }
+                if (validLength < segment.size()) {
+                    if (!last) {
+                        throw new IOException("Journal segment " + file + " is damaged at byte " + validLength);
+                    }
+                    segment.truncate(validLength);
+                }
+            }
+        }
+        durableSeq = lastSeq;
+        if (starts.isEmpty()) {
+            segmentStart = lastSeq + 1;
+        } else {
+            segmentStart = starts.get(starts.size() - 1);
+        }
+        channel = openSegment(segmentStart);
+        if (policy == FsyncPolicy.INTERVAL) {
+            long millis = Long.getLong("atm.journal.fsyncMillis", 10);
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "journal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(() -> flush(lastAppended(), true), millis, millis, TimeUnit.MILLISECONDS);
+        }
+        return applied;
+    }
+
+    private byte[] readRecord(DataInputStream in, long segmentSize) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length <= 0 || length > segmentSize) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            crc.reset();
+            crc.update(bytes);
+            return (int) crc.getValue() == checksum ? bytes : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private FileChannel openSegment(long firstSeq) throws IOException {
+        FileChannel segment = FileChannel.open(segmentFile(directory, firstSeq),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segment.position(segment.size());
+        return segment;
+    }
+
+    // Records already covered by the snapshot (or the mapped account file) are skipped per account,
+    // so a snapshot taken while sessions were running can be followed by any records written around it.
+    private static void apply(ATM atm, long seq, byte op, long timestamp, String a, String b, String c, String d, long amount) {
+        if (op == REGISTER_USER) {
+            if (atm.getUser(a) == null) {
+                atm.registerUser(new User(a, PinHash.decode(b)));
+            }
+            return;
+        }
+        if (op == OPEN_ACCOUNT) {
+            User user = atm.getUser(a);
+            if (user == null) {
+                throw new IllegalStateException("Journal refers to unknown user " + a);
+            }
+            if (user.getAccount(b) == null) {
+                Account account = Account.create(c, b, a, amount);
+                account.replayed(seq);
+                user.addAccount(account);
+            }
+            return;
+        }
+        Account account = atm.findAccount(a, b);
+        if (account == null) {
+            throw new IllegalStateException("Journal refers to unknown account " + a + "/" + b);
+        }
+        if (op == DEPOSIT) {
+            account.replayDeposit(seq, amount, timestamp);
+        } else if (op == WITHDRAW) {
+            account.replayWithdraw(seq, amount, timestamp);
+        } else if (op == TRANSFER) {
+            account.replayTransfer(seq, atm.findAccount(c, d), amount, timestamp);
+        } else if (op == SET_LIMITS) {
+            account.useLimits(new WithdrawalLimits(amount, Long.parseLong(c), Long.parseLong(d)));
+        } else if (op == INTEREST) {
+            account.replayInterest(seq, amount, Long.parseLong(c), Long.parseLong(d), timestamp);
+        } else if (op == CHARGES) {
+            int colon = d.indexOf(':');
+            account.replayCharges(seq, amount, Long.parseLong(d.substring(0, colon)), Long.parseLong(c),
+                    Long.parseLong(d.substring(colon + 1)), timestamp);
+        } else {
+            throw new IllegalStateException("Unknown journal record type " + op);
+        }
+    }
+
+    // Starts a new segment and returns the last seq in the old ones. Every record up to that seq
+    // has been applied by the time its account lock is free, which a snapshot relies on.
+    long rollover() throws IOException {
+        lock.lock();
+        try {
+            while (flushing) {
+                flushed.awaitUninterruptibly();
+            }
+            writePending(true);
+            durableSeq = lastSeq;
+            if (segmentStart != lastSeq + 1) {
+                channel.close();
+                segmentStart = lastSeq + 1;
+                channel = openSegment(segmentStart);
+            }
+            return lastSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Deletes the segments that only hold records up to (and including) the given seq.
+    void truncateUpTo(long seq) throws IOException {
+        lock.lock();
+        try {
+            List<Long> starts = segments(directory);
+            for (int i = 0; i < starts.size(); i++) {
+                long nextStart = i + 1 < starts.size() ? starts.get(i + 1) : Long.MAX_VALUE;
+                if (starts.get(i) != segmentStart && nextStart <= seq + 1) {
+                    Files.deleteIfExists(segmentFile(directory, starts.get(i)));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long logRegister(User user) {
+        long seq = append(REGISTER_USER, System.currentTimeMillis(), user.getName(), user.getPinHash(), "", "", 0);
+        for (Account account : user.getAccounts()) {
+            seq = logOpen(account);
+        }
+        return seq;
+    }
+
+    long logOpen(Account account) {
+        long seq = append(OPEN_ACCOUNT, System.currentTimeMillis(), account.accountHolder, account.accountNumber,
+                account.getProduct().code, "", account.getBalance());
+        if (!account.getWithdrawalLimits().equals(account.getProduct().limits)) {
+            seq = logLimits(account, account.getWithdrawalLimits());
+        }
+        return seq;
+    }
+
+    // the limit goes in the amount, the daily and rolling caps as decimal strings
+    long logLimits(Account account, WithdrawalLimits limits) {
+        return append(SET_LIMITS, System.currentTimeMillis(), account.accountHolder, account.accountNumber,
+                Long.toString(limits.daily), Long.toString(limits.rolling), limits.limit);
+    }
+
+    // the epoch day accrued to and the carried fraction of a cent go in as decimal strings
+    long logInterest(Account account, long interest, long day, long carry, long timestamp) {
+        return append(INTEREST, timestamp, account.accountHolder, account.accountNumber,
+                Long.toString(day), Long.toString(carry), interest);
+    }
+
+    // One record for the fees and the overdraft interest, so a month is either charged or not: the fees
+    // go in the amount, the month as a decimal string, then the interest and the carry as "interest:carry".
+    long logCharges(Account account, long fees, long interest, long month, long carry, long timestamp) {
+        return append(CHARGES, timestamp, account.accountHolder, account.accountNumber,
+                Long.toString(month), interest + ":" + carry, fees);
+    }
+
+    long logDeposit(Account account, long amount, long timestamp) {
+        return append(DEPOSIT, timestamp, account.accountHolder, account.accountNumber, "", "", amount);
+    }
+
+    long logWithdraw(Account account, long amount, long timestamp) {
+        return append(WITHDRAW, timestamp, account.accountHolder, account.accountNumber, "", "", amount);
+    }
+
+    long logTransfer(Account from, Account to, long amount, long timestamp) {
+        return append(TRANSFER, timestamp, from.accountHolder, from.accountNumber, to.accountHolder, to.accountNumber, amount);
+    }
+
+    // Record layout: length, crc32, then seq, type, timestamp, four strings and an amount.
+    private long append(byte op, long timestamp, String a, String b, String c, String d, long amount) {
+        lock.lock();
+        try {
+            long seq = lastSeq + 1;
+            record.reset();
+            recordOut.writeLong(seq);
+            recordOut.writeByte(op);
+            recordOut.writeLong(timestamp);
+            recordOut.writeUTF(a);
+            recordOut.writeUTF(b);
+            recordOut.writeUTF(c);
+            recordOut.writeUTF(d);
+            recordOut.writeLong(amount);
+            crc.reset();
+            crc.update(record.toByteArray());
+            pendingOut.writeInt(record.size());
+            pendingOut.writeInt((int) crc.getValue());
+            record.writeTo(pendingOut);
+            lastSeq = seq;
+            return seq;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void commit(long seq) {
+        if (policy != FsyncPolicy.INTERVAL) {
+            flush(seq, policy == FsyncPolicy.GROUP);
+        }
+    }
+
+    long lastAppended() {
+        lock.lock();
+        try {
+            return lastSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Group commit: the first caller to find records waiting becomes the leader and writes everything
+    // queued so far with one write and one force; the others wait for it and find their record covered.
+    private void flush(long seq, boolean force) {
+        lock.lock();
+        try {
+            while (durableSeq < seq) {
+                if (failure != null) {
+                    throw new UncheckedIOException("Journal is no longer writable", failure);
+                }
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                    continue;
+                }
+                flushing = true;
+                byte[] bytes = pending.toByteArray();
+                pending.reset();
+                long upTo = lastSeq;
+                FileChannel target = channel;
+                lock.unlock();
+                try {
+                    write(target, bytes, force);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    lock.lock();
+                    flushing = false;
+                    flushed.signalAll();
+                }
+                if (failure == null) {
+                    durableSeq = upTo;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // caller holds the lock and no flush is in progress
+    private void writePending(boolean force) throws IOException {
+        byte[] bytes = pending.toByteArray();
+        pending.reset();
+        write(channel, bytes, force);
+    }
+
+    private static void write(FileChannel target, byte[] bytes, boolean force) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        if (force) {
+            target.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        try {
+            flush(lastAppended(), true);
+            if (channel != null) {
+                channel.close();
+            }
+        } finally {
+            directoryLock.channel().close();
+        }
+    }
+}
+
+// Writes all users and accounts to a binary snapshot and then drops the journal segments it covers,
+// so startup loads the snapshot and only replays the journal written after it.
+class Snapshotter implements AutoCloseable {
+    private static final int MAGIC = 0x41544D53;
+    // only snapshots in the format this build writes are read back
+    private static final int VERSION = 1;
+
+    private final Path directory;
+    private final ATM atm;
+    private final Journal journal;
+    private ScheduledExecutorService scheduler;
+
+    Snapshotter(Path directory, ATM atm, Journal journal) {
+        this.directory = directory;
+        this.atm = atm;
+        this.journal = journal;
+    }
+
+    private static Path snapshotFile(Path directory, long seq) {
+        return directory.resolve(String.format("snapshot-%020d.snap", seq));
+    }
+
+    private List<Long> snapshots() throws IOException {
+        List<Long> seqs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot-*.snap")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                seqs.add(Long.parseLong(name.substring("snapshot-".length(), name.length() - ".snap".length())));
+            }
+        }
+        Collections.sort(seqs);
+        return seqs;
+    }
+
+    // Loads the newest snapshot into the (empty) ATM and returns the journal seq it covers, or 0 if there is none.
+    long restore() throws IOException {
+        Files.createDirectories(directory);
+        List<Long> seqs = snapshots();
+        if (seqs.isEmpty()) {
+            return 0;
+        }
+        long seq = seqs.get(seqs.size() - 1);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(snapshotFile(directory, seq)), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + snapshotFile(directory, seq));
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + snapshotFile(directory, seq));
+            }
+            long snapshotSeq = in.readLong();
+            while (in.readBoolean()) {
+                User user = new User(in.readUTF(), PinHash.decode(in.readUTF()));
+                while (in.readBoolean()) {
+                    user.addAccount(Account.readSnapshot(user.getName(), in));
+                }
+                atm.registerUser(user);
+            }
+            return snapshotSeq;
+        }
+    }
+
+    // Sessions keep running while this runs: each account is copied under its own lock, and
+    // anything that changes after the journal rollover is replayed on top at the next startup.
+    synchronized void snapshot() throws IOException {
+        long seq = journal.rollover();
+        Path file = snapshotFile(directory, seq);
+        Path temp = directory.resolve(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(seq);
+            for (User user : atm.getUsers()) {
+                out.writeBoolean(true);
+                out.writeUTF(user.getName());
+                out.writeUTF(user.getPinHash());
+                for (Account account : user.getAccounts()) {
+                    out.writeBoolean(true);
+                    account.writeSnapshot(out);
+                }
+                out.writeBoolean(false);
+            }
+            out.writeBoolean(false);
+            out.flush();
+            channel.force(true);
+        }
+        // the histories just written point into the spill files, so those must be on disk first
+        SpillStore.force();
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long older : snapshots()) {
+            if (older < seq) {
+                Files.deleteIfExists(snapshotFile(directory, older));
+            }
+        }
+        journal.truncateUpTo(seq);
+    }
+
+    void start(long intervalSeconds) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                System.err.println("Snapshot failed: " + e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+}
+
+// A job that visits every account once per period, e.g. a day of interest or a month of fees. The
+// accounts are split into ranges of -Datm.batch.chunk accounts that a fork-join pool of
+// -Datm.batch.parallelism threads works through in parallel. Each account is only locked while its
+// own change is applied, so sessions keep running, and each range commits its journal records at once.
+// There is no batch-wide checkpoint: every account stamps the period it was last done for in the same
+// journal record as the money, so a run that is repeated, or resumed after a crash, skips the accounts
+// that are already done and never applies a period twice.
+abstract class AccountBatch implements AutoCloseable {
+    private static final int CHUNK = Math.max(1, Integer.getInteger("atm.batch.chunk", 4096));
+
+    static final class Result {
+        final String description;
+        final long accounts;
+        final long cents;
+        final long elapsedNanos;
+
+        Result(String description, long accounts, long cents, long elapsedNanos) {
+            this.description = description;
+            this.accounts = accounts;
+            this.cents = cents;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return description + ": " + accounts + " accounts, " + Money.format(cents) + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms";
+        }
+    }
+
+    private final ATM atm;
+    private final int parallelism;
+    // names the scheduler thread and the job in failure messages
+    private final String name;
+    private ScheduledExecutorService scheduler;
+
+    AccountBatch(ATM atm, int parallelism, String name) {
+        this.atm = atm;
+        this.parallelism = parallelism;
+        this.name = name;
+    }
+
+    static int defaultParallelism() {
+        return Integer.getInteger("atm.batch.parallelism", Runtime.getRuntime().availableProcessors());
+    }
+
+    // Applies the period to one account and returns the cents moved, or -1 if the account has nothing
+    // to do for it. The journal record, if any, is committed by the caller.
+    protected abstract long apply(Account account, long period, long timestamp);
+
+    // called just after each local midnight with the day that ended
+    protected abstract void endOfDay(LocalDate day, PrintStream log);
+
+    private final class Range extends RecursiveAction {
+        // never serialized; declared because RecursiveAction is Serializable
+        private static final long serialVersionUID = 1L;
+
+        private final Account[] accounts;
+        private final int from;
+        private final int to;
+        private final long period;
+        private final long timestamp;
+        private final Journal journal;
+        private final LongAdder done;
+        private final LongAdder cents;
+
+        Range(Account[] accounts, int from, int to, long period, long timestamp, Journal journal,
+              LongAdder done, LongAdder cents) {
+            this.accounts = accounts;
+            this.from = from;
+            this.to = to;
+            this.period = period;
+            this.timestamp = timestamp;
+            this.journal = journal;
+            this.done = done;
+            this.cents = cents;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Range(accounts, from, middle, period, timestamp, journal, done, cents),
+                        new Range(accounts, middle, to, period, timestamp, journal, done, cents));
+                return;
+            }
+            long count = 0;
+            long sum = 0;
+            for (int i = from; i < to; i++) {
+                long moved = apply(accounts[i], period, timestamp);
+                if (moved >= 0) {
+                    count++;
+                    sum += moved;
+                }
+            }
+            if (journal != null && count > 0) {
+                journal.commit(journal.lastAppended());
+            }
+            done.add(count);
+            cents.add(sum);
+        }
+    }
+
+    Result run(long period, String description) {
+        long started = System.nanoTime();
+        Account[] accounts = atm.allAccounts();
+        LongAdder done = new LongAdder();
+        LongAdder cents = new LongAdder();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new Range(accounts, 0, accounts.length, period, System.currentTimeMillis(),
+                    atm.getJournal(), done, cents));
+        } finally {
+            pool.shutdown();
+        }
+        return new Result(description, done.sum(), cents.sum(), System.nanoTime() - started);
+    }
+
+    void start(PrintStream log) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleNext(log);
+    }
+
+    private void scheduleNext(PrintStream log) {
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDate today = LocalDate.now(zone);
+        long midnight = today.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        scheduler.schedule(() -> {
+            try {
+                endOfDay(today, log);
+            } catch (RuntimeException e) {
+                log.println(name + " failed: " + e);
+            }
+            scheduleNext(log);
+        }, midnight - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
+
+// End-of-day interest for every account whose product pays it. A day's interest is
+// balance * rateBps / DAILY_DIVISOR cents in exact integer arithmetic: whole cents are posted to the
+// balance and the history, and the fraction of a cent is carried on the account into the next day,
+// so nothing is lost to rounding over a year. The period is the epoch day; a day the process was
+// down for is paid by the next run, as every account catches up on the days since it last accrued.
+final class InterestAccrual extends AccountBatch {
+    // a year of interest at one basis point, spread over the days: 10000 * 365
+    static final long DAILY_DIVISOR = 3_650_000L;
+
+    InterestAccrual(ATM atm) {
+        this(atm, defaultParallelism());
+    }
+
+    InterestAccrual(ATM atm, int parallelism) {
+        super(atm, parallelism, "interest-accrual");
+    }
+
+    // Accrues every account up to the end of the given day.
+    Result run(LocalDate day) {
+        return run(day.toEpochDay(), "Interest for " + day);
+    }
+
+    @Override
+    protected long apply(Account account, long day, long timestamp) {
+        return account.accrueInterest(day, timestamp);
+    }
+
+    @Override
+    protected void endOfDay(LocalDate day, PrintStream log) {
+        log.println(run(day));
+    }
+}
+
+// Monthly maintenance fees and interest on overdrawn balances, charged after the last day of each
+// month. The overdraft interest is -balance * rateBps / MONTHLY_DIVISOR cents on the balance at the
+// time of the run, with the fraction of a cent carried like accrued interest is. The period is the
+// month counted from year 0; months missed while the process was down are charged by the next run.
+final class MonthlyCharges extends AccountBatch {
+    // a year of interest at one basis point, spread over the months: 10000 * 12
+    static final long MONTHLY_DIVISOR = 120_000L;
+
+    MonthlyCharges(ATM atm) {
+        this(atm, defaultParallelism());
+    }
+
+    MonthlyCharges(ATM atm, int parallelism) {
+        super(atm, parallelism, "monthly-charges");
+    }
+
+    static long period(YearMonth month) {
+        return month.getYear() * 12L + month.getMonthValue() - 1;
+    }
+
+    // Charges every account for the given month and any months before it not charged yet.
+    Result run(YearMonth month) {
+        return run(period(month), "Charges for " + month);
+    }
+
+    @Override
+    protected long apply(Account account, long month, long timestamp) {
+        return account.chargeMonthly(month, timestamp);
+    }
+
+    @Override
+    protected void endOfDay(LocalDate day, PrintStream log) {
+        if (day.getDayOfMonth() == day.lengthOfMonth()) {
+            log.println(run(YearMonth.from(day)));
+        }
+    }
+}
+
+// Fixed-size account records in a memory-mapped file, so balances live off-heap in the page cache
+// and the file itself is the latest state after a restart. Balances are updated in place with CAS.
+//
+// Record layout (128 bytes): balance, lastSeq, pendingSeq, undoBalance, limit, type,
+// holder and account number. Slot 0 is the file header.
+class MappedAccountStore implements AutoCloseable {
+    static final int RECORD_SIZE = 128;
+    static final int CHUNK_RECORDS = 1 << 16;
+    static final int BALANCE = 0;
+    static final int LAST_SEQ = 8;
+    static final int PENDING_SEQ = 16;
+    static final int UNDO_BALANCE = 24;
+    static final int LIMIT = 32;
+    static final int TYPE = 40;
+    static final int HOLDER_LENGTH = 42;
+    static final int NUMBER_LENGTH = 43;
+    static final int HOLDER = 44;
+    static final int MAX_HOLDER_BYTES = 48;
+    static final int NUMBER = HOLDER + MAX_HOLDER_BYTES;
+    static final int MAX_NUMBER_BYTES = RECORD_SIZE - NUMBER;
+
+    private static final int MAGIC = 0x41544D41;
+    private static final int VERSION = 1;
+    private static final int HEADER_COUNT = 8;
+
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private final Map<String, Integer> slots = new HashMap<>();
+    private int count;
+
+    private MappedAccountStore(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    static MappedAccountStore open(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        MappedAccountStore store = new MappedAccountStore(FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        MappedByteBuffer header = store.chunk(0);
+        if (header.getInt(0) == 0) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+        } else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not an account store: " + file);
+        }
+        store.count = (int) header.getLong(HEADER_COUNT);
+        for (int slot = 1; slot <= store.count; slot++) {
+            ByteBuffer record = store.chunk(slot / CHUNK_RECORDS);
+            int offset = (slot % CHUNK_RECORDS) * RECORD_SIZE;
+            store.slots.put(key(readString(record, offset + HOLDER, record.get(offset + HOLDER_LENGTH)),
+                    readString(record, offset + NUMBER, record.get(offset + NUMBER_LENGTH))), slot);
+        }
+        return store;
+    }
+
+    private static String key(String holder, String number) {
+        return holder + '\u0000' + number;
+    }
+
+    private MappedByteBuffer chunk(int index) throws IOException {
+        while (chunks.size() <= index) {
+            long position = (long) chunks.size() * CHUNK_RECORDS * RECORD_SIZE;
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) CHUNK_RECORDS * RECORD_SIZE);
+            chunk.order(ByteOrder.LITTLE_ENDIAN);
+            chunks.add(chunk);
+        }
+        return chunks.get(index);
+    }
+
+    // Returns the mapped cell for the account. If the file already has the account and is at least
+    // as far along in the journal as the given cell, the file wins; otherwise the cell is copied in.
+    synchronized BalanceCell bind(Account account, BalanceCell current) {
+        try {
+            Integer existing = slots.get(key(account.accountHolder, account.accountNumber));
+            int slot;
+            if (existing == null) {
+                slot = ++count;
+                slots.put(key(account.accountHolder, account.accountNumber), slot);
+                chunk(0).putLong(HEADER_COUNT, count);
+            } else {
+                slot = existing;
+            }
+            MappedByteBuffer chunk = chunk(slot / CHUNK_RECORDS);
+            int offset = (slot % CHUNK_RECORDS) * RECORD_SIZE;
+            MappedBalanceCell cell = new MappedBalanceCell(chunk, offset);
+            if (existing != null) {
+                cell.recover();
+            }
+            if (existing == null || cell.lastSeq() < current.lastSeq()) {
+                chunk.putLong(offset + BALANCE, current.get());
+                chunk.putLong(offset + LAST_SEQ, current.lastSeq());
+                chunk.putLong(offset + PENDING_SEQ, current.lastSeq());
+                chunk.putLong(offset + UNDO_BALANCE, current.get());
+            }
+            chunk.putLong(offset + LIMIT, account.getLimit());
+            chunk.putChar(offset + TYPE, account.getType());
+            writeString(chunk, offset + HOLDER_LENGTH, offset + HOLDER, MAX_HOLDER_BYTES, account.accountHolder);
+            writeString(chunk, offset + NUMBER_LENGTH, offset + NUMBER, MAX_NUMBER_BYTES, account.accountNumber);
+            return cell;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not grow the account store", e);
+        }
+    }
+
+    private static void writeString(ByteBuffer record, int lengthOffset, int offset, int max, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > max) {
+            throw new IllegalArgumentException("Too long for the account store: " + value);
+        }
+        record.put(lengthOffset, (byte) bytes.length);
+        record.put(offset, bytes);
+    }
+
+    private static String readString(ByteBuffer record, int offset, int length) {
+        byte[] bytes = new byte[length];
+        record.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    synchronized void force() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
+
+// A balance inside the mapped account file. Before a journaled change the old balance is saved
+// next to the seq being applied; if the process dies half-way, recover() puts the old balance back
+// and the journal applies that record again.
+final class MappedBalanceCell extends BalanceCell {
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final ByteBuffer buffer;
+    private final int offset;
+
+    MappedBalanceCell(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    @Override
+    long get() {
+        return (long) LONGS.getVolatile(buffer, offset + MappedAccountStore.BALANCE);
+    }
+
+    @Override
+    boolean compareAndSet(long expected, long updated) {
+        return LONGS.compareAndSet(buffer, offset + MappedAccountStore.BALANCE, expected, updated);
+    }
+
+    @Override
+    void limitChanged(long limit) {
+        LONGS.setVolatile(buffer, offset + MappedAccountStore.LIMIT, limit);
+    }
+
+    @Override
+    long lastSeq() {
+        return (long) LONGS.getVolatile(buffer, offset + MappedAccountStore.LAST_SEQ);
+    }
+
+    @Override
+    void beginUpdate(long seq) {
+        LONGS.setRelease(buffer, offset + MappedAccountStore.UNDO_BALANCE, get());
+        LONGS.setRelease(buffer, offset + MappedAccountStore.PENDING_SEQ, seq);
+    }
+
+    @Override
+    void endUpdate(long seq) {
+        LONGS.setRelease(buffer, offset + MappedAccountStore.LAST_SEQ, seq);
+    }
+
+    void recover() {
+        long lastSeq = lastSeq();
+        if ((long) LONGS.getVolatile(buffer, offset + MappedAccountStore.PENDING_SEQ) > lastSeq) {
+            LONGS.setVolatile(buffer, offset + MappedAccountStore.BALANCE,
+                    (long) LONGS.getVolatile(buffer, offset + MappedAccountStore.UNDO_BALANCE));
+            LONGS.setVolatile(buffer, offset + MappedAccountStore.PENDING_SEQ, lastSeq);
+        }
+    }
+}
+
+// Bank-wide lookup of accounts by (holder, account number) or by account id, without going through
+// the users map. Open addressing over flat arrays: the composite key is hashed straight from the two
+// strings into a long, so a lookup allocates nothing. Reads take no lock; writers build a bigger
+// table when needed and publish it through a volatile field.
+class AccountIndex {
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Account[].class);
+
+    private static final class Table {
+        final long[] keys;
+        final Account[] accounts;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            accounts = new Account[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table byName = new Table(1024);
+    private volatile Table byId = new Table(1024);
+    private int size;
+
+    static long key(String accountHolder, String accountNumber) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < accountHolder.length(); i++) {
+            hash = (hash ^ accountHolder.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ 0xffff) * 0x100000001b3L;
+        for (int i = 0; i < accountNumber.length(); i++) {
+            hash = (hash ^ accountNumber.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static int slot(long key, int mask) {
+        long mixed = key * 0x9e3779b97f4a7c15L;
+        return (int) (mixed ^ (mixed >>> 32)) & mask;
+    }
+
+    public Account get(String accountHolder, String accountNumber) {
+        long key = key(accountHolder, accountNumber);
+        Table table = byName;
+        for (int i = slot(key, table.mask); ; i = (i + 1) & table.mask) {
+            Account account = (Account) SLOTS.getAcquire(table.accounts, i);
+            if (account == null) {
+                return null;
+            }
+            if (table.keys[i] == key && account.accountHolder.equals(accountHolder)
+                    && account.accountNumber.equals(accountNumber)) {
+                return account;
+            }
+        }
+    }
+
+    public Account get(long id) {
+        Table table = byId;
+        for (int i = slot(id, table.mask); ; i = (i + 1) & table.mask) {
+            Account account = (Account) SLOTS.getAcquire(table.accounts, i);
+            if (account == null || table.keys[i] == id) {
+                return account;
+            }
+        }
+    }
+
+    public synchronized void add(Account account) {
+        if (get(account.accountHolder, account.accountNumber) != null) {
+            return;
+        }
+        // kept at most half full so probe chains stay short
+        if ((size + 1) * 2 > byName.keys.length) {
+            byName = grow(byName);
+            byId = grow(byId);
+        }
+        insert(byName, key(account.accountHolder, account.accountNumber), account);
+        insert(byId, account.id, account);
+        size++;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Every account added so far, for batch jobs to split up. Does not block adds; accounts added
+    // while it runs may or may not be included.
+    Account[] toArray() {
+        Table table = byId;
+        List<Account> all = new ArrayList<>(table.keys.length / 2);
+        for (int i = 0; i < table.accounts.length; i++) {
+            Account account = (Account) SLOTS.getAcquire(table.accounts, i);
+            if (account != null) {
+                all.add(account);
+            }
+        }
+        return all.toArray(new Account[0]);
+    }
+
+    private static void insert(Table table, long key, Account account) {
+        int i = slot(key, table.mask);
+        while (table.accounts[i] != null) {
+            i = (i + 1) & table.mask;
+        }
+        table.keys[i] = key;
+        // the key is visible to any reader that sees the account
+        SLOTS.setRelease(table.accounts, i, account);
+    }
+
+    private static Table grow(Table table) {
+        Table bigger = new Table(table.keys.length * 2);
+        for (int i = 0; i < table.keys.length; i++) {
+            if (table.accounts[i] != null) {
+                insert(bigger, table.keys[i], table.accounts[i]);
+            }
+        }
+        return bigger;
+    }
+}
+
+// A salted, slow hash of a PIN, encoded as algorithm$iterations$salt$hash for the journal and snapshots.
+// The key derivation is any SecretKeyFactory PBKDF2 algorithm (-Datm.pin.kdf, default
+// PBKDF2WithHmacSHA256) with -Datm.pin.iterations rounds. Hashes always compare in constant time.
+// Deriving the key is deliberately expensive, so a successful login is remembered for
+// -Datm.pin.cacheSeconds (default 60): the next login with the same PIN compares a keyed SHA-256
+// against the remembered one instead of deriving again. The key is random per process and the
+// remembered digest only lives in memory.
+final class PinHash {
+    private static final String ALGORITHM = System.getProperty("atm.pin.kdf", "PBKDF2WithHmacSHA256");
+    private static final int ITERATIONS = Integer.getInteger("atm.pin.iterations", 100_000);
+    private static final long CACHE_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("atm.pin.cacheSeconds", 60));
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final byte[] CACHE_KEY = new byte[32];
+
+    static {
+        RANDOM.nextBytes(CACHE_KEY);
+    }
+
+    private final String algorithm;
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+    private final String encoded;
+    // the last verified PIN as a keyed digest, with when it stops counting
+    private volatile VerifiedPin verified;
+
+    private static final class VerifiedPin {
+        final byte[] digest;
+        final long expiresAt;
+
+        VerifiedPin(byte[] digest, long expiresAt) {
+            this.digest = digest;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private PinHash(String algorithm, int iterations, byte[] salt, byte[] hash) {
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        this.encoded = algorithm + "$" + iterations + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+    }
+
+    static PinHash create(String pin) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return new PinHash(ALGORITHM, ITERATIONS, salt, derive(ALGORITHM, ITERATIONS, salt, pin));
+    }
+
+    // Reads back what encoded() wrote. Anything else is rejected rather than guessed at: a stored
+    // value that is not a hash must never be taken for the PIN itself.
+    static PinHash decode(String stored) {
+        String[] parts = stored.split("\\$", -1);
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Malformed PIN hash");
+        }
+        Base64.Decoder base64 = Base64.getDecoder();
+        int iterations = Integer.parseInt(parts[1]);
+        byte[] salt = base64.decode(parts[2]);
+        byte[] hash = base64.decode(parts[3]);
+        if (parts[0].isEmpty() || iterations <= 0 || salt.length == 0 || hash.length == 0) {
+            throw new IllegalArgumentException("Malformed PIN hash");
+        }
+        return new PinHash(parts[0], iterations, salt, hash);
+    }
+
+    String encoded() {
+        return encoded;
+    }
+
+    boolean matches(String pin) {
+        if (pin == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        VerifiedPin verified = this.verified;
+        byte[] digest = CACHE_MILLIS > 0 ? cacheDigest(pin) : null;
+        if (verified != null && now < verified.expiresAt && MessageDigest.isEqual(verified.digest, digest)) {
+            return true;
+        }
+        if (!MessageDigest.isEqual(hash, derive(algorithm, iterations, salt, pin))) {
+            return false;
+        }
+        if (digest != null) {
+            this.verified = new VerifiedPin(digest, now + CACHE_MILLIS);
+        }
+        return true;
+    }
+
+    // The full key derivation, skipping the cache; what a login costs when the cache misses.
+    boolean matchesUncached(String pin) {
+        return MessageDigest.isEqual(hash, derive(algorithm, iterations, salt, pin));
+    }
+
+    private byte[] cacheDigest(String pin) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(CACHE_KEY);
+            sha256.update(salt);
+            return sha256.digest(pin.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] derive(String algorithm, int iterations, byte[] salt, String pin) {
+        PBEKeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PIN hashing with " + algorithm + " failed", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
+
+// Failed logins per user and per terminal, counted over a sliding window: once either reaches its
+// limit (-Datm.lockout.userFailures, default 5, and -Datm.lockout.terminalFailures, default 20,
+// within -Datm.lockout.windowSeconds) further logins are refused for -Datm.lockout.seconds without
+// looking at the PIN. Users keep their window themselves; terminals are in a map whose entries a
+// time wheel removes once they have nothing left to remember, so a burst from many addresses does
+// not leave the map growing. A successful login reads one field per side and writes nothing unless
+// the user had failures to clear.
+class LoginThrottle {
+    static final int USER_FAILURES = Integer.getInteger("atm.lockout.userFailures", 5);
+    static final int TERMINAL_FAILURES = Integer.getInteger("atm.lockout.terminalFailures", 20);
+    static final long WINDOW_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("atm.lockout.windowSeconds", 300));
+    static final long LOCKOUT_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("atm.lockout.seconds", 900));
+
+    private static final int WHEEL_SLOTS = 64;
+    private static final long TICK_MILLIS = 1000;
+
+    private final ConcurrentHashMap<String, FailureWindow> terminals = new ConcurrentHashMap<>();
+    // slot i holds the terminals due for a look at ticks i, i + WHEEL_SLOTS, ...
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ConcurrentLinkedQueue<String>[] wheel = new ConcurrentLinkedQueue[WHEEL_SLOTS];
+    private ScheduledExecutorService sweeper;
+
+    LoginThrottle() {
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    boolean isLockedOut(String terminal, User user, long now) {
+        FailureWindow userWindow = user == null ? null : user.getFailedLogins();
+        if (userWindow != null && userWindow.isLockedOut(now)) {
+            return true;
+        }
+        if (terminals.isEmpty()) {
+            return false;
+        }
+        FailureWindow terminalWindow = terminals.get(terminal);
+        return terminalWindow != null && terminalWindow.isLockedOut(now);
+    }
+
+    void failed(String terminal, User user, long now) {
+        if (user != null) {
+            user.failedLogins().failed(now, USER_FAILURES);
+        }
+        FailureWindow window = terminals.get(terminal);
+        if (window == null) {
+            FailureWindow created = new FailureWindow();
+            window = terminals.putIfAbsent(terminal, created);
+            if (window == null) {
+                window = created;
+                schedule(terminal, now);
+            }
+        }
+        window.failed(now, TERMINAL_FAILURES);
+    }
+
+    void succeeded(User user) {
+        FailureWindow window = user.getFailedLogins();
+        if (window != null) {
+            window.clear();
+        }
+    }
+
+    private void schedule(String terminal, long now) {
+        long forgetAt = now + Math.max(WINDOW_MILLIS * 2, LOCKOUT_MILLIS);
+        wheel[(int) ((forgetAt / TICK_MILLIS) % WHEEL_SLOTS)].add(terminal);
+        startSweeper();
+    }
+
+    private synchronized void startSweeper() {
+        if (sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "login-throttle");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleAtFixedRate(this::sweep, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Looks at the terminals in this tick's slot: those that went quiet are dropped, the rest
+    // go back on the wheel for when they will have.
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        ConcurrentLinkedQueue<String> slot = wheel[(int) ((now / TICK_MILLIS) % WHEEL_SLOTS)];
+        for (int i = slot.size(); i > 0; i--) {
+            String terminal = slot.poll();
+            if (terminal == null) {
+                break;
+            }
+            FailureWindow window = terminals.get(terminal);
+            if (window == null) {
+                continue;
+            }
+            long forgetAt = Math.max(window.lastFailure() + WINDOW_MILLIS * 2, window.lockedUntil());
+            if (forgetAt <= now) {
+                terminals.remove(terminal, window);
+            } else {
+                wheel[(int) ((Math.max(forgetAt, now + TICK_MILLIS) / TICK_MILLIS) % WHEEL_SLOTS)].add(terminal);
+            }
+        }
+    }
+}
+
+// A sliding-window failure count in one long: the window number (time / window length), the
+// count in that window and the count in the one before, updated with compare-and-set. The count
+// over the last window length is estimated as the current count plus the share of the previous
+// one that still overlaps it.
+final class FailureWindow {
+    private static final VarHandle STATE;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(FailureWindow.class, "state", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long state;
+    private volatile long lastFailure;
+    private volatile long lockedUntil;
+
+    boolean isLockedOut(long now) {
+        return now < lockedUntil;
+    }
+
+    long lockedUntil() {
+        return lockedUntil;
+    }
+
+    long lastFailure() {
+        return lastFailure;
+    }
+
+    void failed(long now, int limit) {
+        long window = now / LoginThrottle.WINDOW_MILLIS;
+        long current;
+        long updated;
+        do {
+            current = state;
+            long stored = current >>> 32;
+            int count = (int) (current & 0xFFFF);
+            int previous;
+            if (stored == window) {
+                previous = (int) ((current >>> 16) & 0xFFFF);
+                count = Math.min(count + 1, 0xFFFF);
+            } else {
+                previous = stored == window - 1 ? count : 0;
+                count = 1;
+            }
+            updated = window << 32 | (long) previous << 16 | count;
+        } while (!STATE.compareAndSet(this, current, updated));
+        lastFailure = now;
+
+        double overlap = 1 - (double) (now % LoginThrottle.WINDOW_MILLIS) / LoginThrottle.WINDOW_MILLIS;
+        double recent = (updated & 0xFFFF) + ((updated >>> 16) & 0xFFFF) * overlap;
+        if (recent >= limit) {
+            lockedUntil = now + LoginThrottle.LOCKOUT_MILLIS;
+        }
+    }
+
+    void clear() {
+        if (state != 0) {
+            state = 0;
+        }
+    }
+}
+
+class User {
+    private String name;
+    private final PinHash pin;
+    private Map<String, Account> accounts;
+    private ATM atm;
+    // created on the first failed login, so users who never mistype cost nothing
+    private volatile FailureWindow failedLogins;
+
+    public User(String name, String pin) {
+        this(name, PinHash.create(pin));
+    }
+
+    User(String name, PinHash pin) {
+        this.name = name;
+        this.pin = pin;
+        this.accounts = new ConcurrentHashMap<>();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // the encoded hash that journal and snapshot store; the PIN itself is never kept
+    String getPinHash() {
+        return pin.encoded();
+    }
+
+    public void addAccount(Account account) {
+        accounts.put(account.accountNumber, account);
+        if (atm != null) {
+            atm.accountAdded(account);
+        }
+    }
+
+    Collection<Account> getAccounts() {
+        return accounts.values();
+    }
+
+    FailureWindow getFailedLogins() {
+        return failedLogins;
+    }
+
+    FailureWindow failedLogins() {
+        FailureWindow window = failedLogins;
+        if (window == null) {
+            synchronized (this) {
+                window = failedLogins;
+                if (window == null) {
+                    failedLogins = window = new FailureWindow();
+                }
+            }
+        }
+        return window;
+    }
+
+    void registeredWith(ATM atm) {
+        this.atm = atm;
+    }
+
+    public Account getAccount(String accountNumber) {
+        long started = Metrics.start();
+        Account account = accounts.get(accountNumber);
+        Metrics.record(Metrics.Operation.LOOKUP, started);
+        return account;
+    }
+
+    public boolean authenticate(String enteredPin) {
+        long started = Metrics.start();
+        boolean authenticated = pin.matches(enteredPin);
+        Metrics.record(Metrics.Operation.AUTHENTICATE, started);
+        return authenticated;
+    }
+
+    public void printAccounts() {
+        printAccounts(System.out);
+    }
+
+    public void printAccounts(PrintStream out) {
+        out.println("Accounts for " + name + ":");
+        for (String accNum : accounts.keySet()) {
+            out.println(" - " + accNum);
+        }
+    }
+}
+
+class ATM {
+    private Map<String, User> users;
+    private Scanner scanner;
+    private Journal journal;
+    private MappedAccountStore store;
+    private final AccountIndex accounts = new AccountIndex();
+    private final LoginThrottle loginThrottle = new LoginThrottle();
+
+    public ATM(Scanner scanner) {
+        this.users = new ConcurrentHashMap<>();
+        this.scanner = scanner;
+    }
+
+    public void registerUser(User user) {
+        users.put(user.getName(), user);
+        user.registeredWith(this);
+        for (Account account : user.getAccounts()) {
+            if (store != null) {
+                account.bindTo(store);
+            }
+            accounts.add(account);
+        }
+        if (journal != null) {
+            journal.commit(journal.logRegister(user));
+            for (Account account : user.getAccounts()) {
+                account.attachJournal(journal);
+            }
+        }
+    }
+
+    void accountAdded(Account account) {
+        if (store != null) {
+            account.bindTo(store);
+        }
+        accounts.add(account);
+        if (journal != null) {
+            journal.commit(journal.logOpen(account));
+            account.attachJournal(journal);
+        }
+    }
+
+    public User getUser(String name) {
+        return users.get(name);
+    }
+
+    public Account findAccount(String accountHolder, String accountNumber) {
+        long started = Metrics.start();
+        Account account = accounts.get(accountHolder, accountNumber);
+        Metrics.record(Metrics.Operation.LOOKUP, started);
+        return account;
+    }
+
+    public Account findAccount(long id) {
+        return accounts.get(id);
+    }
+
+    Collection<User> getUsers() {
+        return users.values();
+    }
+
+    Account[] allAccounts() {
+        return accounts.toArray();
+    }
+
+    // null until the journal is attached
+    Journal getJournal() {
+        return journal;
+    }
+
+    public boolean hasUsers() {
+        return !users.isEmpty();
+    }
+
+    // From here on every change is journaled. Users already registered (e.g. by replay) are not logged again.
+    public void attachJournal(Journal journal) {
+        this.journal = journal;
+        for (User user : users.values()) {
+            for (Account account : user.getAccounts()) {
+                account.attachJournal(journal);
+            }
+        }
+    }
+
+    // Moves every balance into the mapped account file. Done after the snapshot is loaded and
+    // before the journal is replayed, so replay can skip what the file already has.
+    public void attachStore(MappedAccountStore store) {
+        this.store = store;
+        for (User user : users.values()) {
+            for (Account account : user.getAccounts()) {
+                account.bindTo(store);
+            }
+        }
+    }
+
+    LoginThrottle getLoginThrottle() {
+        return loginThrottle;
+    }
+
+    public void start() {
+        runSession(scanner, System.out, "console");
+    }
+
+    public void runSession(Scanner scanner, PrintStream out, String terminal) {
+        new ConsoleSession(new ATMSession(this, terminal), scanner, out).run();
+    }
+}
+
+enum SessionStatus {
+    OK,
+    USER_NOT_FOUND,
+    INVALID_PIN,
+    LOCKED_OUT,
+    NOT_LOGGED_IN,
+    INVALID_ACCOUNT,
+    INVALID_TARGET,
+    INVALID_AMOUNT,
+    DECLINED
+}
+
+// Outcome of a session command. Each session owns one and refills it on every call,
+// so commands do not allocate; read it before issuing the next command.
+final class SessionResult {
+    SessionStatus status;
+    // the selected account's balance after the command, when status is OK
+    long balance;
+    // why the command was declined, when status is DECLINED
+    String message;
+    // for a page of history, how many entries the account has in all
+    long entries;
+
+    SessionResult set(SessionStatus status, long balance, String message) {
+        this.status = status;
+        this.balance = balance;
+        this.message = message;
+        return this;
+    }
+
+    boolean isOk() {
+        return status == SessionStatus.OK;
+    }
+}
+
+// The ATM operations for one customer, without any I/O: log in, pick an account, then work on it.
+// Console, TCP and binary-protocol terminals are adapters on top of this. Not thread-safe; one per terminal.
+class ATMSession {
+    private final ATM atm;
+    // where the customer is, e.g. the client address; failed logins are also limited per terminal
+    private final String terminal;
+    private final SessionResult result = new SessionResult();
+    private User user;
+    private Account account;
+
+    ATMSession(ATM atm, String terminal) {
+        this.atm = atm;
+        this.terminal = terminal;
+    }
+
+    User getUser() {
+        return user;
+    }
+
+    Account getAccount() {
+        return account;
+    }
+
+    boolean hasUser(String username) {
+        return atm.getUser(username) != null;
+    }
+
+    SessionResult login(String username, String pin) {
+        LoginEvent event = new LoginEvent();
+        event.begin();
+        user = null;
+        account = null;
+        long now = System.currentTimeMillis();
+        LoginThrottle throttle = atm.getLoginThrottle();
+        User candidate = atm.getUser(username);
+        if (throttle.isLockedOut(terminal, candidate, now)) {
+            // checked before the PIN, so a locked-out guesser cannot even make us hash
+            result.set(SessionStatus.LOCKED_OUT, 0, null);
+        } else if (candidate == null) {
+            throttle.failed(terminal, null, now);
+            result.set(SessionStatus.USER_NOT_FOUND, 0, null);
+        } else if (!candidate.authenticate(pin)) {
+            throttle.failed(terminal, candidate, now);
+            result.set(SessionStatus.INVALID_PIN, 0, null);
+        } else {
+            throttle.succeeded(candidate);
+            user = candidate;
+            result.set(SessionStatus.OK, 0, null);
+        }
+        event.finish(username, result.status);
+        AuditLog.login(username, result.status);
+        return result;
+    }
+
+    SessionResult selectAccount(String accountNumber) {
+        if (user == null) {
+            return result.set(SessionStatus.NOT_LOGGED_IN, 0, null);
+        }
+        Account selected = user.getAccount(accountNumber);
+        if (selected == null) {
+            return result.set(SessionStatus.INVALID_ACCOUNT, 0, null);
+        }
+        account = selected;
+        return result.set(SessionStatus.OK, account.getBalance(), null);
+    }
+
+    SessionResult balance() {
+        if (!ready()) {
+            return result;
+        }
+        return result.set(SessionStatus.OK, account.getBalance(), null);
+    }
+
+    SessionResult deposit(long amount) {
+        if (!ready()) {
+            return result;
+        }
+        try {
+            return result.set(SessionStatus.OK, account.deposit(amount), null);
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            return result.set(SessionStatus.INVALID_AMOUNT, 0, e.getMessage());
+        }
+    }
+
+    SessionResult withdraw(long amount) {
+        if (!ready()) {
+            return result;
+        }
+        try {
+            return result.set(SessionStatus.OK, account.withdraw(amount), null);
+        } catch (InsufficientFundsException e) {
+            return result.set(SessionStatus.DECLINED, 0, e.getMessage());
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            return result.set(SessionStatus.INVALID_AMOUNT, 0, e.getMessage());
+        }
+    }
+
+    // The target can be any account in the bank, looked up in the index rather than through the users;
+    // a null or empty holder means one of the user's own. Returns null when there is no such account.
+    Account findTarget(String targetHolder, String targetAccountNumber) {
+        if (user == null) {
+            return null;
+        }
+        String holder = targetHolder == null || targetHolder.isEmpty() ? user.getName() : targetHolder;
+        return atm.findAccount(holder, targetAccountNumber);
+    }
+
+    SessionResult transfer(String targetHolder, String targetAccountNumber, long amount) {
+        return transfer(findTarget(targetHolder, targetAccountNumber), amount);
+    }
+
+    SessionResult transfer(Account target, long amount) {
+        if (!ready()) {
+            return result;
+        }
+        if (target == null) {
+            return result.set(SessionStatus.INVALID_TARGET, 0, null);
+        }
+        try {
+            return result.set(SessionStatus.OK, account.transfer(target, amount), null);
+        } catch (InsufficientFundsException e) {
+            return result.set(SessionStatus.DECLINED, 0, e.getMessage());
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            return result.set(SessionStatus.INVALID_AMOUNT, 0, e.getMessage());
+        }
+    }
+
+    // Visits the selected account's history oldest first.
+    SessionResult history(TransactionHistory.Visitor visitor) {
+        if (!ready()) {
+            return result;
+        }
+        account.transactionHistory.forEach(visitor);
+        return result.set(SessionStatus.OK, account.getBalance(), null);
+    }
+
+    // Visits the selected account's history from the given entry until the cursor stops.
+    SessionResult history(long first, TransactionHistory.Cursor cursor) {
+        if (!ready()) {
+            return result;
+        }
+        long entries = account.transactionHistory.read(first, cursor);
+        result.set(SessionStatus.OK, account.getBalance(), null).entries = entries;
+        return result;
+    }
+
+    private boolean ready() {
+        if (user == null) {
+            result.set(SessionStatus.NOT_LOGGED_IN, 0, null);
+            return false;
+        }
+        if (account == null) {
+            result.set(SessionStatus.INVALID_ACCOUNT, 0, null);
+            return false;
+        }
+        return true;
+    }
+}
+
+// The interactive menu: reads from a Scanner, prints to a PrintStream, and does the work through an ATMSession.
+class ConsoleSession {
+    private final ATMSession session;
+    private final Scanner scanner;
+    private final PrintStream out;
+
+    ConsoleSession(ATMSession session, Scanner scanner, PrintStream out) {
+        this.session = session;
+        this.scanner = scanner;
+        this.out = out;
+    }
+
+    public void run() {
+        out.print("Enter username: ");
+        String username = scanner.nextLine();
+
+        if (!session.hasUser(username)) {
+            // still a login attempt, so guessing usernames counts against this terminal
+            if (session.login(username, "").status == SessionStatus.LOCKED_OUT) {
+                out.println("Too many failed attempts. Please try again later.");
+            } else {
+                out.println("User not found!");
+            }
+            return;
+        }
+
+        out.print("Enter PIN: ");
+        String enteredPin = scanner.nextLine();
+
+        SessionResult login = session.login(username, enteredPin);
+        if (login.status == SessionStatus.LOCKED_OUT) {
+            out.println("Too many failed attempts. Please try again later.");
+            return;
+        }
+        if (!login.isOk()) {
+            out.println("Invalid PIN!");
+            return;
+        }
+
+        out.println("Login successful!");
+        session.getUser().printAccounts(out);
+
+        out.print("Enter account number: ");
+        String accountNumber = scanner.nextLine();
+
+        if (!session.selectAccount(accountNumber).isOk()) {
+            out.println("Invalid account number!");
+            return;
+        }
+
+        while (true) {
+            out.println("\n1. Check Balance\n2. Deposit\n3. Withdraw\n4. Transfer\n5. Transaction History\n6. Exit");
+            out.print("Choose an option: ");
+
+            int choice;
+            try {
+                choice = scanner.nextInt();
+            } catch (Exception e) {
+                out.println("Invalid input! Please enter a number.");
+                scanner.nextLine(); // clear invalid input
+                continue;
+            }
+
+            try {
+                switch (choice) {
+                    case 1:
+                        out.println("Balance: " + Money.format(session.balance().balance));
+                        break;
+                    case 2:
+                        out.print("Enter deposit amount: ");
+                        report(session.deposit(Money.parse(scanner.next())), "Deposit successful! New balance: ");
+                        break;
+                    case 3:
+                        out.print("Enter withdrawal amount: ");
+                        report(session.withdraw(Money.parse(scanner.next())), "Withdrawal successful! New balance: ");
+                        break;
+                    case 4:
+                        scanner.nextLine(); // consume leftover newline
+                        out.print("Enter target account holder (blank for your own accounts): ");
+                        String targetHolder = scanner.nextLine().trim();
+                        out.print("Enter target account number: ");
+                        String targetAccountNumber = scanner.nextLine();
+                        Account targetAccount = session.findTarget(targetHolder, targetAccountNumber);
+                        if (targetAccount == null) {
+                            out.println("Invalid target account!");
+                            break;
+                        }
+                        out.print("Enter transfer amount: ");
+                        SessionResult transfer = session.transfer(targetAccount, Money.parse(scanner.next()));
+                        if (transfer.isOk()) {
+                            out.println("Transfer successful!");
+                        } else {
+                            report(transfer, null);
+                        }
+                        break;
+                    case 5:
+                        session.getAccount().printTransactionHistory(out);
+                        break;
+                    case 6:
+                        out.println("Goodbye!");
+                        return;
+                    default:
+                        out.println("Invalid choice!");
+                }
+            } catch (Exception e) {
+                out.println("Something went wrong. Please try again.");
+                scanner.nextLine(); // to clear the buffer
+            }
+        }
+    }
+
+    private void report(SessionResult result, String success) {
+        switch (result.status) {
+            case OK:
+                out.println(success + Money.format(result.balance));
+                break;
+            case DECLINED:
+                out.println(result.message);
+                break;
+            default:
+                out.println("Something went wrong. Please try again.");
+        }
+    }
+}
+
+// Serves ATM sessions to terminals over TCP, one session per connection, all against the same ATM.
+// Each session gets a virtual thread when the JVM has them (Java 21+), otherwise a pooled platform thread.
+class ATMServer implements AutoCloseable {
+    private final ATM atm;
+    private final ServerSocket serverSocket;
+    private final ExecutorService sessions;
+
+    ATMServer(ATM atm, int port) throws IOException {
+        this.atm = atm;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(port), 4096);
+        this.sessions = newSessionExecutor();
+    }
+
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "atm-session");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Accepts connections until close() is called.
+    void serve() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    break;
+                }
+                System.err.println("Accept failed: " + e.getMessage());
+                continue;
+            }
+            sessions.execute(() -> handle(socket));
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket connection = socket;
+             Scanner in = new Scanner(connection.getInputStream());
+             PrintStream out = new PrintStream(connection.getOutputStream(), true)) {
+            connection.setTcpNoDelay(true);
+            atm.runSession(in, out, connection.getInetAddress().getHostAddress());
+        } catch (NoSuchElementException | IOException e) {
+            // terminal hung up
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        sessions.shutdown();
+    }
+}
+
+// Opcodes and status codes of the binary terminal protocol. All numbers are big-endian.
+//
+// Request:  u16 length, u8 op, payload               (length counts op and payload)
+// Response: i32 length, u8 op, u8 status, payload    (length counts op, status and payload)
+// Strings are a u8 byte count followed by UTF-8 bytes; amounts are i64 cents.
+//
+// LOGIN    user, pin                        -> (empty)
+// SELECT   account number                   -> i64 balance
+// BALANCE                                   -> i64 balance
+// DEPOSIT  i64 amount                       -> i64 balance
+// WITHDRAW i64 amount                       -> i64 balance
+// TRANSFER holder, account number, amount   -> i64 balance
+// HISTORY  i32 first entry                  -> i64 total, i32 n, n x (u8 type, i64 amount, i64 time, counterparty)
+//
+// A terminal may send any number of requests without waiting; responses come back in order.
+final class BinaryProtocol {
+    static final byte LOGIN = 1;
+    static final byte SELECT = 2;
+    static final byte BALANCE = 3;
+    static final byte DEPOSIT = 4;
+    static final byte WITHDRAW = 5;
+    static final byte TRANSFER = 6;
+    static final byte HISTORY = 7;
+
+    static final byte OK = 0;
+    static final byte NOT_LOGGED_IN = 1;
+    static final byte USER_NOT_FOUND = 2;
+    static final byte INVALID_PIN = 3;
+    static final byte INVALID_ACCOUNT = 4;
+    static final byte DECLINED = 5;
+    static final byte BAD_REQUEST = 6;
+    static final byte ERROR = 7;
+    static final byte LOCKED_OUT = 8;
+
+    private BinaryProtocol() {
+    }
+
+    static String readString(ByteBuffer buffer) {
+        int length = buffer.get() & 0xFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.put((byte) Math.min(bytes.length, 255));
+        buffer.put(bytes, 0, Math.min(bytes.length, 255));
+    }
+}
+
+// Selector-based front end for the binary protocol. A few event loops each own a set of connections.
+// Read and write buffers are direct buffers pooled per loop: a connection borrows them while it has
+// bytes in flight and gives them back once they are empty, so idle terminals hold no buffers, and
+// requests run on a loop are decoded and answered in place.
+// Requests that can take long are handed to a pool of -Datm.nio.workers threads so that they never
+// hold up the other connections on a loop: a login that has to derive the PIN key (tens of
+// milliseconds), history read from disk, and, while a journal is attached, deposits, withdrawals and
+// transfers, which wait for their journal record to be written. A connection has at most one request
+// with the workers, and the pool's size caps how many key derivations run at once however many
+// logins arrive. Handing a request over copies it into a buffer of its own.
+class NioATMServer implements AutoCloseable {
+    static final int BUFFER_SIZE = 8 * 1024;
+    // room needed before handling a request; HISTORY then fills whatever is left
+    private static final int MAX_FIXED_RESPONSE = 32;
+    // type, amount, time and a counterparty of up to 255 bytes
+    private static final int MAX_HISTORY_ENTRY = 1 + 8 + 8 + 256;
+
+    private final ATM atm;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    // whether money requests commit to a journal, and so go to the workers
+    private final boolean journaled;
+    private volatile boolean running = true;
+
+    NioATMServer(ATM atm, int port, int loopCount) throws IOException {
+        this.atm = atm;
+        this.journaled = atm.getJournal() != null;
+        AtomicLong workerCount = new AtomicLong();
+        this.workers = Executors.newFixedThreadPool(Integer.getInteger("atm.nio.workers",
+                Runtime.getRuntime().availableProcessors()), r -> {
+            Thread thread = new Thread(r, "atm-nio-worker-" + workerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port), 4096);
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+    }
+
+    int getPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    // Accepts connections on the calling thread until close(), handing them to the loops in turn.
+    void serve() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (!running) {
+                    break;
+                }
+                System.err.println("Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        workers.shutdownNow();
+    }
+
+    private static final class Connection {
+        final SocketChannel channel;
+        ByteBuffer in;
+        ByteBuffer out;
+        // set when requests are waiting because the write buffer had no room for their answers
+        boolean waitingForRoom;
+        // set while a worker runs a request for this connection; no other request is handled until
+        // its answer is in, so the worker has the session to itself and answers stay in order
+        boolean busy;
+        final ATMSession session;
+
+        Connection(SocketChannel channel, ATMSession session) {
+            this.channel = channel;
+            this.session = session;
+        }
+    }
+
+    private final class EventLoop extends Thread {
+        final Selector selector;
+        final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        // answers from the workers, applied on this loop's thread
+        final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+        final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+
+        EventLoop(int index) throws IOException {
+            super("atm-nio-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    SocketChannel pending;
+                    while ((pending = pendingRegistrations.poll()) != null) {
+                        pending.register(selector, SelectionKey.OP_READ, new Connection(pending, new ATMSession(atm, terminal(pending))));
+                    }
+                    Runnable completion;
+                    while ((completion = completions.poll()) != null) {
+                        completion.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                flush(key, connection);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(key, connection);
+                            }
+                        } catch (IOException e) {
+                            close(key, connection);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                close(key, (Connection) key.attachment());
+            }
+        }
 
-    public Account(String accountNumber, String accountHolder, double balance) {
-        this.accountNumber = accountNumber;
-        this.accountHolder = accountHolder;
-        this.balance = balance;
-        this.transactionHistory = new ArrayList<>();
+        private ByteBuffer borrow() {
+            ByteBuffer buffer = bufferPool.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        private void giveBack(ByteBuffer buffer) {
+            buffer.clear();
+            bufferPool.push(buffer);
+        }
+
+        private void close(SelectionKey key, Connection connection) {
+            key.cancel();
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+            if (connection.in != null) {
+                giveBack(connection.in);
+                connection.in = null;
+            }
+            if (connection.out != null) {
+                giveBack(connection.out);
+                connection.out = null;
+            }
+        }
+
+        private void read(SelectionKey key, Connection connection) throws IOException {
+            if (connection.in == null) {
+                connection.in = borrow();
+            }
+            if (connection.out == null) {
+                connection.out = borrow();
+            }
+            if (connection.channel.read(connection.in) < 0) {
+                close(key, connection);
+                return;
+            }
+            process(key, connection);
+        }
+
+        // Handles every complete frame that has arrived, as long as there is room to answer it
+        // and no worker has the connection, then writes out the answers.
+        private void process(SelectionKey key, Connection connection) throws IOException {
+            ByteBuffer in = connection.in;
+            if (in != null) {
+                in.flip();
+                connection.waitingForRoom = false;
+                while (!connection.busy && in.remaining() >= 2) {
+                    int length = in.getShort(in.position()) & 0xFFFF;
+                    if (length == 0 || length > in.capacity() - 2) {
+                        throw new IOException("Bad request length " + length);
+                    }
+                    if (in.remaining() < 2 + length) {
+                        break;
+                    }
+                    if (connection.out.remaining() < MAX_FIXED_RESPONSE) {
+                        connection.waitingForRoom = true;
+                        break;
+                    }
+                    in.position(in.position() + 2);
+                    int end = in.position() + length;
+                    int limit = in.limit();
+                    in.limit(end);
+                    if (blocking(in.get(in.position()))) {
+                        offload(key, connection, ByteBuffer.allocate(length).put(in).flip());
+                    } else {
+                        handle(connection.session, in, connection.out);
+                    }
+                    in.limit(limit);
+                    in.position(end);
+                }
+                in.compact();
+            }
+            flush(key, connection);
+        }
+
+        // The answer is built in a buffer of the room the write buffer has now; until the answer
+        // is in, the write buffer only drains, so it fits when it comes back.
+        private void offload(SelectionKey key, Connection connection, ByteBuffer request) {
+            connection.busy = true;
+            ByteBuffer answer = ByteBuffer.allocate(connection.out.remaining());
+            workers.execute(() -> {
+                try {
+                    handle(connection.session, request, answer);
+                } finally {
+                    completions.add(() -> complete(key, connection, answer));
+                    selector.wakeup();
+                }
+            });
+        }
+
+        private void complete(SelectionKey key, Connection connection, ByteBuffer answer) {
+            connection.busy = false;
+            if (!key.isValid()) {
+                return;
+            }
+            if (connection.out == null) {
+                connection.out = borrow();
+            }
+            connection.out.put(answer.flip());
+            try {
+                process(key, connection);
+            } catch (IOException e) {
+                close(key, connection);
+            }
+        }
+
+        private void flush(SelectionKey key, Connection connection) throws IOException {
+            ByteBuffer out = connection.out;
+            out.flip();
+            connection.channel.write(out);
+            out.compact();
+            boolean drained = out.position() == 0;
+            if (drained && connection.waitingForRoom) {
+                // answer the requests that were waiting for room, then come back here
+                read(key, connection);
+                return;
+            }
+            // while a worker has the connection, requests stay unread in the socket
+            key.interestOps(!drained ? SelectionKey.OP_WRITE : connection.busy ? 0 : SelectionKey.OP_READ);
+            if (drained) {
+                giveBack(out);
+                connection.out = null;
+                if (connection.in != null && connection.in.position() == 0) {
+                    giveBack(connection.in);
+                    connection.in = null;
+                }
+            }
+        }
     }
 
-    public double getBalance() {
-        return balance;
+    private static String terminal(SocketChannel channel) {
+        try {
+            SocketAddress address = channel.getRemoteAddress();
+            return address instanceof InetSocketAddress
+                    ? ((InetSocketAddress) address).getAddress().getHostAddress() : String.valueOf(address);
+        } catch (IOException e) {
+            return "unknown";
+        }
     }
 
-    public void deposit(double amount) {
-        balance += amount;
-        transactionHistory.add("Deposited: $" + amount);
-        System.out.println("Deposit successful! New balance: $" + balance);
+    // requests that may take long and are run by a worker; a login cannot tell in advance
+    // whether its PIN is cached, and wrong PINs never are
+    private boolean blocking(byte op) {
+        if (op == BinaryProtocol.LOGIN || op == BinaryProtocol.HISTORY) {
+            return true;
+        }
+        return journaled && (op == BinaryProtocol.DEPOSIT || op == BinaryProtocol.WITHDRAW || op == BinaryProtocol.TRANSFER);
     }
 
-    public void transfer(Account toAccount, double amount) throws InsufficientFundsException {
-        if (amount > balance) {
-            throw new InsufficientFundsException("Transfer failed: Insufficient funds.");
+    private void handle(ATMSession session, ByteBuffer request, ByteBuffer out) {
+        int start = out.position();
+        byte op = request.get();
+        out.putInt(0);
+        out.put(op);
+        try {
+            switch (op) {
+                case BinaryProtocol.LOGIN: {
+                    String username = BinaryProtocol.readString(request);
+                    reply(out, session.login(username, BinaryProtocol.readString(request)), false);
+                    break;
+                }
+                case BinaryProtocol.SELECT:
+                    reply(out, session.selectAccount(BinaryProtocol.readString(request)), true);
+                    break;
+                case BinaryProtocol.BALANCE:
+                    reply(out, session.balance(), true);
+                    break;
+                case BinaryProtocol.DEPOSIT:
+                    reply(out, session.deposit(request.getLong()), true);
+                    break;
+                case BinaryProtocol.WITHDRAW:
+                    reply(out, session.withdraw(request.getLong()), true);
+                    break;
+                case BinaryProtocol.TRANSFER: {
+                    String holder = BinaryProtocol.readString(request);
+                    String accountNumber = BinaryProtocol.readString(request);
+                    reply(out, session.transfer(holder, accountNumber, request.getLong()), true);
+                    break;
+                }
+                case BinaryProtocol.HISTORY:
+                    history(session, request, out);
+                    break;
+                default:
+                    out.put(BinaryProtocol.BAD_REQUEST);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            out.position(start + 5);
+            out.put(BinaryProtocol.BAD_REQUEST);
+        } catch (RuntimeException e) {
+            out.position(start + 5);
+            out.put(BinaryProtocol.ERROR);
         }
-        this.withdraw(amount);
-        toAccount.deposit(amount);
-        transactionHistory.add("Transferred: $" + amount + " to " + toAccount.accountNumber);
-        System.out.println("Transfer successful!");
+        out.putInt(start, out.position() - start - 4);
     }
 
-    public void printTransactionHistory() {
-        System.out.println("\nTransaction History for " + accountHolder + " (" + accountNumber + "):");
-        for (String transaction : transactionHistory) {
-            System.out.println(transaction);
+    private static void reply(ByteBuffer out, SessionResult result, boolean withBalance) {
+        out.put(status(result.status));
+        if (withBalance && result.isOk()) {
+            out.putLong(result.balance);
         }
     }
 
-    public abstract void withdraw(double amount) throws InsufficientFundsException;
+    private static byte status(SessionStatus status) {
+        switch (status) {
+            case OK:
+                return BinaryProtocol.OK;
+            case USER_NOT_FOUND:
+                return BinaryProtocol.USER_NOT_FOUND;
+            case INVALID_PIN:
+                return BinaryProtocol.INVALID_PIN;
+            case LOCKED_OUT:
+                return BinaryProtocol.LOCKED_OUT;
+            case NOT_LOGGED_IN:
+                return BinaryProtocol.NOT_LOGGED_IN;
+            case INVALID_ACCOUNT:
+            case INVALID_TARGET:
+                return BinaryProtocol.INVALID_ACCOUNT;
+            case DECLINED:
+                return BinaryProtocol.DECLINED;
+            case INVALID_AMOUNT:
+                return BinaryProtocol.BAD_REQUEST;
+            default:
+                return BinaryProtocol.ERROR;
+        }
+    }
+
+    // Sends entries from the requested index onwards, as many as fit in the answer;
+    // the terminal asks again from where the answer stopped.
+    private static void history(ATMSession session, ByteBuffer request, ByteBuffer out) {
+        int first = request.getInt();
+        int statusPosition = out.position();
+        out.put(BinaryProtocol.OK);
+        int totalPosition = out.position();
+        out.putLong(0);
+        int countPosition = out.position();
+        out.putInt(0);
+        int[] written = new int[1];
+        SessionResult result = session.history(Math.max(first, 0), (type, amount, timestamp, counterparty) -> {
+            if (out.remaining() < MAX_HISTORY_ENTRY) {
+                return false;
+            }
+            out.put(type);
+            out.putLong(amount);
+            out.putLong(timestamp);
+            BinaryProtocol.writeString(out, counterparty == null ? "" : counterparty);
+            written[0]++;
+            return true;
+        });
+        if (!result.isOk()) {
+            out.position(statusPosition);
+            out.put(status(result.status));
+            return;
+        }
+        out.putLong(totalPosition, result.entries);
+        out.putInt(countPosition, written[0]);
+    }
 }
 
-class CheckingAccount extends Account {
-    private static final double OVERDRAFT_LIMIT = 100.00;
+// Log-linear latency histogram in nanoseconds: values are bucketed by power of two and each power
+// of two is split into 128 linear sub-buckets, so any recorded value is reported within 1%.
+// Not thread-safe; record into one per thread and add them up at the end.
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = SUB_BUCKETS * 2;
 
-    public CheckingAccount(String accountNumber, String accountHolder, double balance) {
-        super(accountNumber, accountHolder, balance);
+    private final long[] counts = new long[LINEAR + (64 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS];
+    private long total;
+    private long max;
+    private long sum;
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        max = Math.max(max, value);
     }
 
-    @Override
-    public void withdraw(double amount) throws InsufficientFundsException {
-        if (balance + OVERDRAFT_LIMIT < amount) {
-            throw new InsufficientFundsException("Withdrawal failed: Overdraft limit exceeded.");
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
         }
-        balance -= amount;
-        transactionHistory.add("Withdrawn: $" + amount);
-        System.out.println("Withdrawal successful! New balance: $" + balance);
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
     }
-}
 
-class SavingsAccount extends Account {
-    private static final double WITHDRAWAL_LIMIT = 500.00;
+    long count() {
+        return total;
+    }
 
-    public SavingsAccount(String accountNumber, String accountHolder, double balance) {
-        super(accountNumber, accountHolder, balance);
+    long max() {
+        return max;
     }
 
-    @Override
-    public void withdraw(double amount) throws InsufficientFundsException {
-        if (amount > WITHDRAWAL_LIMIT) {
-            throw new InsufficientFundsException("Withdrawal failed: Exceeds savings withdrawal limit.");
+    double mean() {
+        return total == 0 ? 0 : (double) sum / total;
+    }
+
+    // The smallest value that at least the given percentage of recordings are at or below.
+    long percentile(double percent) {
+        if (total == 0) {
+            return 0;
         }
-        if (balance < amount) {
-            throw new InsufficientFundsException("Withdrawal failed: Insufficient funds.");
+        long rank = Math.max(1, (long) Math.ceil(total * percent / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max);
+            }
         }
-        balance -= amount;
-        transactionHistory.add("Withdrawn: $" + amount);
-        System.out.println("Withdrawal successful! New balance: $" + balance);
+        return max;
     }
-}
 
-class InsufficientFundsException extends Exception {
-    public InsufficientFundsException(String message) {
-        super(message);
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestValue(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
     }
 }
 
-class User {
-    private String name;
-    private String pin;
-    private HashMap<String, Account> accounts;
+// Synthetic customers for load testing: java ATMApp load [host:port]
+// Sessions arrive at a fixed rate (open model, -Datm.load.rate per second) for -Datm.load.seconds,
+// each one logging in as a random customer and checking the balance, then depositing, withdrawing
+// and transferring with the configured percentages. Without an address it drives an in-process ATM
+// with no journal; with one it talks the binary protocol to an NioATMServer, which needs the same
+// customers (start it with -Datm.load.seedCustomers, which also puts it on a temporary data directory
+// instead of atm.data.dir). Latency is measured from when each operation was due rather than when it
+// was sent, so a stall counts against every session queued behind it instead of being hidden by the
+// generator falling behind (coordinated omission); the uncorrected service time is reported alongside.
+class LoadGenerator {
+    enum Operation { LOGIN, BALANCE, DEPOSIT, WITHDRAW, TRANSFER }
 
-    public User(String name, String pin) {
-        this.name = name;
-        this.pin = pin;
-        this.accounts = new HashMap<>();
+    static final String CUSTOMER_PREFIX = "load";
+    static final String CUSTOMER_PIN = "1234";
+
+    // What a load worker talks to: the in-process session or a network connection.
+    interface Terminal extends AutoCloseable {
+        // returns the status byte of the binary protocol
+        byte execute(Operation operation, String name, long amount) throws IOException;
+
+        @Override
+        void close() throws IOException;
     }
 
-    public String getName() {
-        return name;
+    private final int customers = Integer.getInteger("atm.load.customers", 1000);
+    private final double rate = Double.parseDouble(System.getProperty("atm.load.rate", "1000"));
+    private final long seconds = Long.getLong("atm.load.seconds", 10);
+    private final int threads = Integer.getInteger("atm.load.threads", 64);
+    private final int depositPercent = Integer.getInteger("atm.load.depositPercent", 20);
+    private final int withdrawPercent = Integer.getInteger("atm.load.withdrawPercent", 60);
+    private final int transferPercent = Integer.getInteger("atm.load.transferPercent", 10);
+    private final long amount = Money.ofDollars(Long.getLong("atm.load.amountDollars", 20));
+
+    private final Supplier<Terminal> terminals;
+
+    LoadGenerator(Supplier<Terminal> terminals) {
+        this.terminals = terminals;
     }
 
-    public void addAccount(Account account) {
-        accounts.put(account.accountNumber, account);
+    // Registers the load customers that are missing, each with a checking and a savings account.
+    static void seedCustomers(ATM atm, int count) {
+        // one hash for all of them, deriving a key per customer would make seeding take minutes
+        PinHash pin = count > 0 ? PinHash.create(CUSTOMER_PIN) : null;
+        for (int i = 0; i < count; i++) {
+            String name = CUSTOMER_PREFIX + i;
+            if (atm.getUser(name) == null) {
+                User user = new User(name, pin);
+                user.addAccount(new CheckingAccount("CHK" + i, name, Money.ofDollars(10_000)));
+                user.addAccount(new SavingsAccount("SAV" + i, name, Money.ofDollars(10_000)));
+                atm.registerUser(user);
+            }
+        }
     }
 
-    public Account getAccount(String accountNumber) {
-        return accounts.get(accountNumber);
+    static Supplier<Terminal> inProcess(ATM atm) {
+        return () -> new Terminal() {
+            private final ATMSession session = new ATMSession(atm, "load");
+
+            @Override
+            public byte execute(Operation operation, String name, long amount) {
+                SessionResult result;
+                switch (operation) {
+                    case LOGIN:
+                        result = session.login(name, CUSTOMER_PIN);
+                        if (result.isOk()) {
+                            result = session.selectAccount("CHK" + name.substring(CUSTOMER_PREFIX.length()));
+                        }
+                        break;
+                    case BALANCE:
+                        result = session.balance();
+                        break;
+                    case DEPOSIT:
+                        result = session.deposit(amount);
+                        break;
+                    case WITHDRAW:
+                        result = session.withdraw(amount);
+                        break;
+                    default:
+                        result = session.transfer(name, "CHK" + name.substring(CUSTOMER_PREFIX.length()), amount);
+                }
+                return result.isOk() ? BinaryProtocol.OK : result.status == SessionStatus.DECLINED
+                        ? BinaryProtocol.DECLINED : BinaryProtocol.ERROR;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
     }
 
-    public boolean authenticate(String enteredPin) {
-        return this.pin.equals(enteredPin);
+    static Supplier<Terminal> network(InetSocketAddress address) {
+        return () -> {
+            try {
+                return new NetworkTerminal(address);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
     }
 
-    public void printAccounts() {
-        System.out.println("Accounts for " + name + ":");
-        for (String accNum : accounts.keySet()) {
-            System.out.println(" - " + accNum);
+    // One blocking connection speaking the binary protocol, one request at a time.
+    private static final class NetworkTerminal implements Terminal {
+        private final SocketChannel channel;
+        private final ByteBuffer request = ByteBuffer.allocate(512);
+        private final ByteBuffer response = ByteBuffer.allocate(NioATMServer.BUFFER_SIZE);
+
+        NetworkTerminal(InetSocketAddress address) throws IOException {
+            channel = SocketChannel.open(address);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
         }
-    }
-}
 
-class ATM {
-    private HashMap<String, User> users;
-    private Scanner scanner;
+        @Override
+        public byte execute(Operation operation, String name, long amount) throws IOException {
+            String number = "CHK" + name.substring(CUSTOMER_PREFIX.length());
+            if (operation == Operation.LOGIN) {
+                send(BinaryProtocol.LOGIN);
+                BinaryProtocol.writeString(request, name);
+                BinaryProtocol.writeString(request, CUSTOMER_PIN);
+                byte status = roundTrip();
+                if (status != BinaryProtocol.OK) {
+                    return status;
+                }
+                send(BinaryProtocol.SELECT);
+                BinaryProtocol.writeString(request, number);
+                return roundTrip();
+            }
+            switch (operation) {
+                case BALANCE:
+                    send(BinaryProtocol.BALANCE);
+                    break;
+                case DEPOSIT:
+                    send(BinaryProtocol.DEPOSIT);
+                    request.putLong(amount);
+                    break;
+                case WITHDRAW:
+                    send(BinaryProtocol.WITHDRAW);
+                    request.putLong(amount);
+                    break;
+                default:
+                    send(BinaryProtocol.TRANSFER);
+                    BinaryProtocol.writeString(request, name);
+                    BinaryProtocol.writeString(request, number);
+                    request.putLong(amount);
+            }
+            return roundTrip();
+        }
 
-    public ATM(Scanner scanner) {
-        this.users = new HashMap<>();
-        this.scanner = scanner;
-    }
+        private void send(byte op) {
+            request.clear();
+            request.putShort((short) 0);
+            request.put(op);
+        }
 
-    public void registerUser(User user) {
-        users.put(user.getName(), user);
+        // Returns the status byte of the answer to the request in the buffer.
+        private byte roundTrip() throws IOException {
+            request.putShort(0, (short) (request.position() - 2));
+            request.flip();
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            response.clear();
+            response.limit(4);
+            readFully();
+            int length = response.getInt(0);
+            if (length > response.capacity() - 4) {
+                throw new IOException("Response too large: " + length);
+            }
+            response.limit(4 + length);
+            readFully();
+            return response.get(5);
+        }
+
+        private void readFully() throws IOException {
+            while (response.hasRemaining()) {
+                if (channel.read(response) < 0) {
+                    throw new EOFException("Server closed the connection");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
     }
 
-    public void start() {
-        System.out.print("Enter username: ");
-        String username = scanner.nextLine();
+    // Per-worker results, added up when the run ends.
+    private static final class Results {
+        final LatencyHistogram[] corrected = new LatencyHistogram[Operation.values().length];
+        final LatencyHistogram[] service = new LatencyHistogram[Operation.values().length];
+        final long[] declined = new long[Operation.values().length];
+        final long[] failed = new long[Operation.values().length];
+        long sessions;
 
-        User user = users.get(username);
-        if (user == null) {
-            System.out.println("User not found!");
-            return;
+        Results() {
+            for (int i = 0; i < corrected.length; i++) {
+                corrected[i] = new LatencyHistogram();
+                service[i] = new LatencyHistogram();
+            }
         }
 
-        System.out.print("Enter PIN: ");
-        String enteredPin = scanner.nextLine();
+        void add(Results other) {
+            for (int i = 0; i < corrected.length; i++) {
+                corrected[i].add(other.corrected[i]);
+                service[i].add(other.service[i]);
+                declined[i] += other.declined[i];
+                failed[i] += other.failed[i];
+            }
+            sessions += other.sessions;
+        }
+    }
 
-        if (!user.authenticate(enteredPin)) {
-            System.out.println("Invalid PIN!");
-            return;
+    void run(PrintStream out) throws InterruptedException {
+        long intervalNanos = (long) (1e9 / rate);
+        long totalSessions = (long) (rate * seconds);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        Results[] perWorker = new Results[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int worker = t;
+            perWorker[t] = new Results();
+            // session k is due at start + k * interval and is run by worker k % threads
+            workers[t] = new Thread(() -> {
+                Results results = perWorker[worker];
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try (Terminal terminal = terminals.get()) {
+                    for (long k = worker; k < totalSessions; k += threads) {
+                        long due = start + k * intervalNanos;
+                        long wait;
+                        while ((wait = due - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        String name = CUSTOMER_PREFIX + random.nextInt(customers);
+                        due = timed(terminal, Operation.LOGIN, name, 0, due, results);
+                        due = timed(terminal, Operation.BALANCE, name, 0, due, results);
+                        if (random.nextInt(100) < depositPercent) {
+                            due = timed(terminal, Operation.DEPOSIT, name, amount, due, results);
+                        }
+                        if (random.nextInt(100) < withdrawPercent) {
+                            due = timed(terminal, Operation.WITHDRAW, name, amount, due, results);
+                        }
+                        if (random.nextInt(100) < transferPercent) {
+                            timed(terminal, Operation.TRANSFER, CUSTOMER_PREFIX + random.nextInt(customers), amount / 4, due, results);
+                        }
+                        results.sessions++;
+                    }
+                } catch (IOException | UncheckedIOException e) {
+                    System.err.println("Load worker " + worker + " stopped: " + e.getMessage());
+                }
+            }, "atm-load-" + t);
+            workers[t].start();
         }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
 
-        System.out.println("Login successful!");
-        user.printAccounts();
+        Results total = new Results();
+        for (Results results : perWorker) {
+            total.add(results);
+        }
+        long operations = 0;
+        for (LatencyHistogram histogram : total.corrected) {
+            operations += histogram.count();
+        }
+        out.printf("sessions=%d operations=%d elapsed=%.2fs sessions/s=%.0f ops/s=%.0f (target %.0f sessions/s)%n",
+                total.sessions, operations, elapsedSeconds, total.sessions / elapsedSeconds, operations / elapsedSeconds, rate);
+        out.println("operation,count,declined,failed,p50_us,p99_us,p99.9_us,max_us,service_p50_us,service_p99_us,service_p99.9_us");
+        for (Operation operation : Operation.values()) {
+            int i = operation.ordinal();
+            LatencyHistogram corrected = total.corrected[i];
+            LatencyHistogram service = total.service[i];
+            out.printf("%s,%d,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f%n", operation.name().toLowerCase(),
+                    corrected.count(), total.declined[i], total.failed[i],
+                    corrected.percentile(50) / 1e3, corrected.percentile(99) / 1e3, corrected.percentile(99.9) / 1e3,
+                    corrected.max() / 1e3, service.percentile(50) / 1e3, service.percentile(99) / 1e3,
+                    service.percentile(99.9) / 1e3);
+        }
+    }
 
-        System.out.print("Enter account number: ");
-        String accountNumber = scanner.nextLine();
+    // Runs one operation that was due at the given time and returns when the next one is due:
+    // straight after this one, since a customer at the ATM does not wait between steps.
+    private static long timed(Terminal terminal, Operation operation, String name, long amount, long due,
+                              Results results) throws IOException {
+        long sent = System.nanoTime();
+        byte status = terminal.execute(operation, name, amount);
+        long done = System.nanoTime();
+        int i = operation.ordinal();
+        results.corrected[i].record(done - due);
+        results.service[i].record(done - sent);
+        if (status == BinaryProtocol.DECLINED) {
+            results.declined[i]++;
+        } else if (status != BinaryProtocol.OK) {
+            results.failed[i]++;
+        }
+        return done;
+    }
+}
 
-        Account account = user.getAccount(accountNumber);
-        if (account == null) {
-            System.out.println("Invalid account number!");
-            return;
+// Microbenchmarks for the account operations: java ATMApp bench [threads...]
+// Every benchmark runs at each thread count, once with all threads on the same objects (shared)
+// and once with an object per thread (private), and prints a CSV row per run so results can be
+// compared across releases. Timing is set with -Datm.bench.warmupSeconds and -Datm.bench.seconds,
+// -Datm.bench.include picks benchmarks by name prefix and -Datm.bench.out writes to a file.
+class Benchmarks {
+    interface Operation {
+        long run() throws Exception;
+    }
+
+    interface Setup {
+        // builds the operation for one thread; shared objects are captured by the setup itself
+        Operation forThread(int thread);
+    }
+
+    private static final long FUNDS = Money.ofDollars(1_000_000_000_000L);
+
+    private final long warmupNanos = TimeUnit.SECONDS.toNanos(Long.getLong("atm.bench.warmupSeconds", 1));
+    private final long measureNanos = TimeUnit.SECONDS.toNanos(Long.getLong("atm.bench.seconds", 3));
+    private final String include = System.getProperty("atm.bench.include", "");
+    private final int[] threadCounts;
+    private final PrintStream out;
+    // results are folded in here so the JIT cannot drop the work
+    private volatile long sink;
+
+    Benchmarks(int[] threadCounts, PrintStream out) {
+        this.threadCounts = threadCounts;
+        this.out = out;
+    }
+
+    static int[] defaultThreadCounts() {
+        int max = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+        for (int n = 1; n < max; n *= 2) {
+            counts.add(n);
         }
+        counts.add(max);
+        return counts.stream().mapToInt(Integer::intValue).toArray();
+    }
 
-        while (true) {
-            System.out.println("\n1. Check Balance\n2. Deposit\n3. Withdraw\n4. Transfer\n5. Transaction History\n6. Exit");
-            System.out.print("Choose an option: ");
+    void runAll() throws InterruptedException {
+        out.println("benchmark,scope,threads,ops,ops_per_sec,ns_per_op");
+        accountBenchmarks("checking", (number, holder) -> new CheckingAccount(number, holder, FUNDS));
+        accountBenchmarks("savings", (number, holder) -> new SavingsAccount(number, holder, FUNDS));
 
-            int choice;
+        AtomicLong histories = new AtomicLong();
+        both("history.add", () -> new TransactionHistory("bench", "H" + histories.incrementAndGet()),
+                history -> () -> {
+                    history.add(TransactionHistory.DEPOSIT, 1, null, System.currentTimeMillis());
+                    return 1;
+                });
+
+        // what a decline cost before the shared exceptions: a new exception and its stack trace per throw
+        both("declined.newException", () -> InsufficientFundsException.Reason.INSUFFICIENT_FUNDS, reason -> () -> {
             try {
-                choice = scanner.nextInt();
-            } catch (Exception e) {
-                System.out.println("Invalid input! Please enter a number.");
-                scanner.nextLine(); // clear invalid input
-                continue;
+                throw new InsufficientFundsException(reason, "Withdrawal failed: Insufficient funds.");
+            } catch (InsufficientFundsException e) {
+                return e.getReason().ordinal();
             }
+        });
+
+        both("user.getAccount", Benchmarks::benchUser, user -> {
+            long[] i = new long[1];
+            return () -> user.getAccount((i[0]++ & 1) == 0 ? "CHK1" : "SAV1").id;
+        });
+        both("user.authenticate", Benchmarks::benchUser, user -> () -> user.authenticate("1234") ? 1 : 0);
+        // a whole session login: lockout checks, user lookup and a cached PIN check
+        both("session.login", () -> {
+            ATM atm = new ATM(null);
+            atm.registerUser(benchUser());
+            return new ATMSession(atm, "bench");
+        }, session -> () -> session.login("bench", "1234").isOk() ? 1 : 0);
+        // a login whose PIN is not cached: one full key derivation
+        both("pin.derive", () -> PinHash.create("1234"), pin -> () -> pin.matchesUncached("1234") ? 1 : 0);
+    }
+
+    private interface AccountFactory {
+        Account create(String number, String holder);
+    }
 
+    private void accountBenchmarks(String product, AccountFactory factory) throws InterruptedException {
+        AtomicLong numbers = new AtomicLong();
+        // no daily or rolling caps, which the benchmarks would run into within a second
+        Supplier<Account> account = () -> {
+            Account created = factory.create("B" + numbers.incrementAndGet(), "bench");
+            created.setWithdrawalLimits(new WithdrawalLimits(created.getLimit(), WithdrawalLimits.NONE, WithdrawalLimits.NONE));
+            return created;
+        };
+        // caps high enough never to be reached, to show what tracking them costs
+        Supplier<Account> capped = () -> {
+            Account created = factory.create("B" + numbers.incrementAndGet(), "bench");
+            created.setWithdrawalLimits(new WithdrawalLimits(created.getLimit(), FUNDS, FUNDS));
+            return created;
+        };
+        both(product + ".deposit", account, a -> () -> a.deposit(1));
+        both(product + ".withdraw", account, a -> () -> a.withdraw(1));
+        both(product + ".withdrawCapped", capped, a -> () -> a.withdraw(1));
+        both(product + ".transfer", () -> new Account[] {account.get(), account.get()}, pair -> () -> pair[0].transfer(pair[1], 1));
+        // always over the overdraft, the savings cap or the balance
+        both(product + ".declined", account, a -> () -> {
             try {
-                switch (choice) {
-                    case 1:
-                        System.out.println("Balance: $" + account.getBalance());
-                        break;
-                    case 2:
-                        System.out.print("Enter deposit amount: ");
-                        account.deposit(scanner.nextDouble());
-                        break;
-                    case 3:
-                        System.out.print("Enter withdrawal amount: ");
-                        account.withdraw(scanner.nextDouble());
-                        break;
-                    case 4:
-                        scanner.nextLine(); // consume leftover newline
-                        System.out.print("Enter target account number: ");
-                        String targetAccountNumber = scanner.nextLine();
-                        Account targetAccount = user.getAccount(targetAccountNumber);
-                        if (targetAccount == null) {
-                            System.out.println("Invalid target account!");
-                            break;
-                        }
-                        System.out.print("Enter transfer amount: ");
-                        account.transfer(targetAccount, scanner.nextDouble());
-                        break;
-                    case 5:
-                        account.printTransactionHistory();
-                        break;
-                    case 6:
-                        System.out.println("Goodbye!");
-                        return;
-                    default:
-                        System.out.println("Invalid choice!");
-                }
+                return a.withdraw(FUNDS * 2);
             } catch (InsufficientFundsException e) {
-                System.out.println(e.getMessage());
-            } catch (Exception e) {
-                System.out.println("Something went wrong. Please try again.");
-                scanner.nextLine(); // to clear the buffer
+                return e.getReason().ordinal();
+            }
+        });
+    }
+
+    private static User benchUser() {
+        User user = new User("bench", "1234");
+        user.addAccount(new CheckingAccount("CHK1", "bench", 0));
+        user.addAccount(new SavingsAccount("SAV1", "bench", 0));
+        return user;
+    }
+
+    // Runs the benchmark with one object shared by all threads, then with one object per thread.
+    private <T> void both(String name, Supplier<T> create,
+                          Function<T, Operation> operation) throws InterruptedException {
+        if (!name.startsWith(include)) {
+            return;
+        }
+        for (int threads : threadCounts) {
+            T shared = create.get();
+            run(name, "shared", threads, thread -> operation.apply(shared));
+            if (threads > 1) {
+                run(name, "private", threads, thread -> operation.apply(create.get()));
             }
         }
     }
+
+    private void run(String name, String scope, int threads, Setup setup) throws InterruptedException {
+        Operation[] operations = new Operation[threads];
+        for (int t = 0; t < threads; t++) {
+            operations[t] = setup.forThread(t);
+        }
+        long[] ops = new long[threads];
+        long[] elapsed = new long[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    long sum = 0;
+                    Operation operation = operations[index];
+                    long warmupEnd = System.nanoTime() + warmupNanos;
+                    while (System.nanoTime() < warmupEnd) {
+                        for (int i = 0; i < 64; i++) {
+                            sum += operation.run();
+                        }
+                    }
+                    long count = 0;
+                    long begin = System.nanoTime();
+                    long end = begin + measureNanos;
+                    long now;
+                    do {
+                        for (int i = 0; i < 64; i++) {
+                            sum += operation.run();
+                        }
+                        count += 64;
+                    } while ((now = System.nanoTime()) < end);
+                    ops[index] = count;
+                    elapsed[index] = now - begin;
+                    sink += sum;
+                } catch (Exception e) {
+                    throw new IllegalStateException(name + " failed", e);
+                }
+            }, "atm-bench-" + t);
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long totalOps = 0;
+        double opsPerSecond = 0;
+        for (int t = 0; t < threads; t++) {
+            totalOps += ops[t];
+            opsPerSecond += ops[t] * 1e9 / elapsed[t];
+        }
+        out.printf("%s,%s,%d,%d,%.0f,%.2f%n", name, scope, threads, totalOps, opsPerSecond, threads * 1e9 / opsPerSecond);
+        out.flush();
+    }
+}
+
+// Hammers one account from many threads and checks that nothing was lost: each thread deposits and
+// withdraws random amounts and adds up what went through, and at the end the balance must be the
+// starting balance plus those deposits minus those withdrawals, the history must hold one entry per
+// operation that went through, and no withdrawal may ever have left the balance below the minimum.
+class StressTest {
+    private final int threads;
+    private final int operations;
+
+    StressTest(int threads, int operations) {
+        this.threads = threads;
+        this.operations = operations;
+    }
+
+    // Returns whether every account checked out.
+    boolean runAll(PrintStream out) throws InterruptedException {
+        boolean passed = run("checking", new CheckingAccount("STRESS1", "stress", 0), out);
+        return run("savings", new SavingsAccount("STRESS2", "stress", Money.ofDollars(100)), out) && passed;
+    }
+
+    private boolean run(String name, Account account, PrintStream out) throws InterruptedException {
+        // no per-withdrawal, daily or rolling caps, so withdrawals are only declined for the balance
+        long minimum = account.getType() == CheckingAccount.TYPE ? -account.getLimit() : 0;
+        account.setWithdrawalLimits(new WithdrawalLimits(account.getType() == CheckingAccount.TYPE
+                ? account.getLimit() : WithdrawalLimits.NONE, WithdrawalLimits.NONE, WithdrawalLimits.NONE));
+        long start = account.getBalance();
+        LongAdder deposited = new LongAdder();
+        LongAdder withdrawn = new LongAdder();
+        LongAdder applied = new LongAdder();
+        AtomicLong lowest = new AtomicLong(start);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < operations; i++) {
+                    // withdrawals a little larger than deposits on average, so the balance keeps running into the minimum
+                    if (random.nextBoolean()) {
+                        long amount = Money.ofDollars(1 + random.nextInt(100));
+                        account.deposit(amount);
+                        deposited.add(amount);
+                        applied.increment();
+                    } else {
+                        long amount = Money.ofDollars(1 + random.nextInt(120));
+                        try {
+                            long balance = account.withdraw(amount);
+                            withdrawn.add(amount);
+                            applied.increment();
+                            lowest.accumulateAndGet(balance, Math::min);
+                        } catch (InsufficientFundsException e) {
+                            // declined, nothing to count
+                        }
+                    }
+                }
+            }, "atm-stress-" + t);
+            workers[t].start();
+        }
+        long started = System.nanoTime();
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - started;
+
+        long balance = account.getBalance();
+        long expected = start + deposited.sum() - withdrawn.sum();
+        boolean passed = balance == expected
+                && account.transactionHistory.size() == applied.sum()
+                && lowest.get() >= minimum;
+        out.printf("%s: %s, %d threads x %d operations in %d ms, balance %s (expected %s), %d of %d in history, lowest %s (minimum %s)%n",
+                name, passed ? "PASS" : "FAIL", threads, operations, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                Money.format(balance), Money.format(expected), account.transactionHistory.size(),
+                applied.sum(), Money.format(lowest.get()), Money.format(minimum));
+        return passed;
+    }
 }
 
 public class ATMApp {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("bench")) {
+            bench(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("load")) {
+            load(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("stress")) {
+            stress(args);
+            return;
+        }
+
+        // a bad -Datm.products file stops startup here, before the data directory is opened
+        Products.all();
+        int seedCustomers = Integer.getInteger("atm.load.seedCustomers", 0);
+        Path dataDirectory;
+        if (seedCustomers > 0) {
+            // the load customers all share one PIN, so they never go into a real data directory
+            dataDirectory = Files.createTempDirectory("atm-load");
+            System.setProperty("atm.history.dir", dataDirectory.resolve("history").toString());
+            System.err.println("Seeding " + seedCustomers + " load customers into " + dataDirectory);
+        } else {
+            dataDirectory = Paths.get(System.getProperty("atm.data.dir", "atm-data"));
+        }
         Scanner scanner = new Scanner(System.in);
         ATM atm = new ATM(scanner);
 
-        User user1 = new User("Alice", "1234");
-        user1.addAccount(new CheckingAccount("CHK123", "Alice", 1000));
-        user1.addAccount(new SavingsAccount("SAV123", "Alice", 5000));
+        FsyncPolicy fsyncPolicy = FsyncPolicy.valueOf(System.getProperty("atm.journal.fsync", "group").toUpperCase());
+        boolean mapped = Boolean.getBoolean("atm.accounts.mapped");
+        try (Journal journal = Journal.open(dataDirectory, fsyncPolicy);
+             Snapshotter snapshotter = new Snapshotter(dataDirectory, atm, journal);
+             InterestAccrual interest = new InterestAccrual(atm);
+             MonthlyCharges charges = new MonthlyCharges(atm);
+             MappedAccountStore store = mapped ? MappedAccountStore.open(dataDirectory.resolve("accounts.dat")) : null) {
+            long snapshotSeq = snapshotter.restore();
+            if (store != null) {
+                atm.attachStore(store);
+            }
+            journal.replay(atm, snapshotSeq);
+            atm.attachJournal(journal);
+            snapshotter.start(Long.getLong("atm.snapshot.intervalSeconds", 300));
+            interest.start(System.err);
+            charges.start(System.err);
+            Metrics.registerMBean();
+            long dumpSeconds = Long.getLong("atm.metrics.dumpSeconds", 0);
+            if (dumpSeconds > 0) {
+                Metrics.startDump(dumpSeconds, System.err);
+            }
 
-        User user2 = new User("Bhanu", "4321");
-        user2.addAccount(new CheckingAccount("CHK123", "Bhanu", 9000));
-        user2.addAccount(new SavingsAccount("SAV123", "Bhanu", 5000));
+            if (!atm.hasUsers()) {
+                User user1 = new User("Alice", "1234");
+                user1.addAccount(new CheckingAccount("CHK123", "Alice", Money.ofDollars(1000)));
+                user1.addAccount(new SavingsAccount("SAV123", "Alice", Money.ofDollars(5000)));
 
-        User user3 = new User("Sanjay", "1012");
-        user3.addAccount(new CheckingAccount("CHK123", "Sanjay", 8000));
-        user3.addAccount(new SavingsAccount("SAV123", "Sanjay", 4000));
+                User user2 = new User("Bhanu", "4321");
+                user2.addAccount(new CheckingAccount("CHK123", "Bhanu", Money.ofDollars(9000)));
+                user2.addAccount(new SavingsAccount("SAV123", "Bhanu", Money.ofDollars(5000)));
 
+                User user3 = new User("Sanjay", "1012");
+                user3.addAccount(new CheckingAccount("CHK123", "Sanjay", Money.ofDollars(8000)));
+                user3.addAccount(new SavingsAccount("SAV123", "Sanjay", Money.ofDollars(4000)));
 
-        atm.registerUser(user1);
-        atm.registerUser(user2);
-        atm.registerUser(user3);
 
+                atm.registerUser(user1);
+                atm.registerUser(user2);
+                atm.registerUser(user3);
+            }
+            LoadGenerator.seedCustomers(atm, seedCustomers);
 
-        atm.start();
+            if (args.length > 0 && args[0].equals("serve")) {
+                int port = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+                ATMServer server = new ATMServer(atm, port);
+                Thread mainThread = Thread.currentThread();
+                // on Ctrl+C stop accepting and let main take the final snapshot before the JVM exits
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        server.close();
+                        mainThread.join(30_000);
+                    } catch (IOException | InterruptedException e) {
+                        // exiting anyway
+                    }
+                }));
+                System.out.println("ATM server listening on port " + server.getPort());
+                server.serve();
+            } else if (args.length > 0 && args[0].equals("nio")) {
+                int port = args.length > 1 ? Integer.parseInt(args[1]) : 5001;
+                int loops = Integer.getInteger("atm.nio.loops", Runtime.getRuntime().availableProcessors());
+                NioATMServer server = new NioATMServer(atm, port, loops);
+                Thread mainThread = Thread.currentThread();
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        server.close();
+                        mainThread.join(30_000);
+                    } catch (IOException | InterruptedException e) {
+                        // exiting anyway
+                    }
+                }));
+                System.out.println("ATM binary protocol server listening on port " + server.getPort());
+                server.serve();
+            } else if (args.length > 0 && args[0].equals("accrue")) {
+                // accrue a day by hand (yesterday by default), e.g. after the nightly run was missed
+                LocalDate day = args.length > 1 ? LocalDate.parse(args[1]) : LocalDate.now().minusDays(1);
+                System.out.println(interest.run(day));
+            } else if (args.length > 0 && args[0].equals("charge")) {
+                // charge a month by hand (last month by default)
+                YearMonth month = args.length > 1 ? YearMonth.parse(args[1]) : YearMonth.now().minusMonths(1);
+                System.out.println(charges.run(month));
+            } else {
+                atm.start();
+            }
+            snapshotter.snapshot();
+        }
 
         scanner.close(); // important to close the scanner at the end
     }
+
+    private static void load(String[] args) throws IOException {
+        Supplier<LoadGenerator.Terminal> terminals;
+        if (args.length > 1) {
+            int colon = args[1].lastIndexOf(':');
+            terminals = LoadGenerator.network(new InetSocketAddress(args[1].substring(0, colon),
+                    Integer.parseInt(args[1].substring(colon + 1))));
+        } else {
+            if (System.getProperty("atm.history.dir") == null) {
+                System.setProperty("atm.history.dir", Files.createTempDirectory("atm-load").toString());
+            }
+            ATM atm = new ATM(new Scanner(System.in));
+            LoadGenerator.seedCustomers(atm, Integer.getInteger("atm.load.customers", 1000));
+            terminals = LoadGenerator.inProcess(atm);
+        }
+        try {
+            new LoadGenerator(terminals).run(System.out);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // java ATMApp stress [threads] [operations per thread]; exits with 1 if an account does not add up
+    private static void stress(String[] args) throws IOException {
+        if (System.getProperty("atm.history.dir") == null) {
+            System.setProperty("atm.history.dir", Files.createTempDirectory("atm-stress").toString());
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(16, 2 * Runtime.getRuntime().availableProcessors());
+        int operations = args.length > 2 ? Integer.parseInt(args[2]) : 50_000;
+        boolean passed;
+        try {
+            passed = new StressTest(threads, operations).runAll(System.out);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            passed = false;
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static void bench(String[] args) throws IOException {
+        // every operation appends history, so keep the spill files out of the real data directory
+        if (System.getProperty("atm.history.dir") == null) {
+            System.setProperty("atm.history.dir", Files.createTempDirectory("atm-bench").toString());
+        }
+        int[] threadCounts = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : Benchmarks.defaultThreadCounts();
+        String outFile = System.getProperty("atm.bench.out");
+        try (PrintStream out = outFile == null ? new PrintStream(System.out, true) : new PrintStream(outFile, StandardCharsets.UTF_8)) {
+            new Benchmarks(threadCounts, out).runAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }